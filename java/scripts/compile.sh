@@ -4,9 +4,10 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 set -e
 
 # compile the java program
-javac -d $DIR/../src $DIR/../src/Cafe.java
+javac -d $DIR/../src $DIR/../src/*.java
 
 #run the java program
 #Use your database name and portss
-java -cp $DIR/../src:$CLASSPATH Cafe mydb $PGPORT
+#Set CAFE_OPTS to pass options, e.g. CAFE_OPTS="-Dcafe.replicas=5433" to read from a replica
+java $CAFE_OPTS -cp $DIR/../src:$CLASSPATH Cafe mydb $PGPORT
 
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+set -e
+
+# compile the java program
+javac -d $DIR/../src $DIR/../src/*.java
+
+#generate users.csv, menu.csv, orders.csv and itemStatus.csv
+#e.g. ./generate_data.sh /tmp/cafe-data --orders=10000000 --seed=7
+java -cp $DIR/../src DataGenerator "$@"
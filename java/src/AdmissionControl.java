@@ -0,0 +1,509 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+/**
+ * This class admits database work by priority class across every terminal
+ * using the same database, so order entry and kitchen updates keep running
+ * while managers browse and report at peak.
+ *
+ * Terminals are separate processes, so the admission state lives in the
+ * home database as session advisory locks taken on a connection of its own.
+ * There are -Dcafe.admission.total slots, slot i being the lock
+ * (SLOT_KEY, i), and a class may only use the first
+ * -Dcafe.admission.limit.<class> slots, which bounds the work of that class
+ * running at once.  The holder of a slot also holds (RUN_KEY + class, i) so
+ * the running work shows up per class.
+ *
+ * A slot is taken by the first query after the terminal read the keyboard
+ * and kept until it reads the keyboard again, so the statements of one step
+ * of a terminal operation, on the primary, a replica or a shard, are
+ * admitted in memory.  Admission costs one round trip on the admission
+ * connection when the step starts and one when the terminal next waits on
+ * the keyboard, and none per query.
+ *
+ * Work finding no free slot, or others of its class or a higher one
+ * waiting, takes a queue ticket, (QUEUE_KEY + class, i) for i below
+ * -Dcafe.admission.queue, and blocks on one of its slots with
+ * pg_advisory_lock.  Work finding every ticket of its class taken is
+ * refused.  The admission session runs with lock_timeout set to
+ * -Dcafe.admission.shed.ms: when it expires, work of the lowest class is
+ * shed and the others look for a free slot again and wait on another one.
+ * Waiters of high classes wait on the high slots, which the lower classes
+ * may not use.  Refused and shed work is counted in the cafe_shed_<class>
+ * sequences.
+ *
+ * A terminal that exits or loses its connection frees its slots and tickets
+ * with its session.  When the admission connection fails, work is admitted
+ * without a slot rather than refused.  -Dcafe.admission=false turns
+ * admission off.
+ *
+ * Each thread has a current class, set by the terminal operation it runs.
+ *
+ */
+public class AdmissionControl {
+
+   /**
+    * Priority classes, highest first
+    */
+   public enum Priority { ORDER_ENTRY, BROWSE, MANAGEMENT }
+
+   public static final int DEFAULT_TOTAL = 8;
+   public static final int DEFAULT_QUEUE = 64;
+   public static final long DEFAULT_SHED_MS = 500;
+
+   // advisory lock key spaces, the first key of every lock
+   static final int SLOT_KEY = 0x43414600;
+   static final int RUN_KEY = 0x43414610;
+   static final int QUEUE_KEY = 0x43414620;
+
+   private static final Priority[] CLASSES = Priority.values();
+   private static final Priority LOWEST = CLASSES[CLASSES.length - 1];
+
+   // sqlstate of a lock wait ended by lock_timeout
+   private static final String LOCK_NOT_AVAILABLE = "55P03";
+
+   // slot of work admitted without one
+   private static final int UNLIMITED = -1;
+   private static final int WAIT = -2;
+
+   // advisory locks of this database only, granted to any session
+   private static final String LOCKS =
+      "FROM pg_locks WHERE locktype = 'advisory' AND granted AND objsubid = 2 " +
+      "AND database = (SELECT oid FROM pg_database WHERE datname = current_database())";
+
+   // the slot the current thread holds, with its class and controller, and
+   // how many admitted calls of the thread are running
+   private static final ThreadLocal<Hold> HOLD = ThreadLocal.withInitial(Hold::new);
+
+   private static class Hold {
+      AdmissionControl owner = null;
+      int c;
+      int slot;
+      int depth = 0;
+   }//end Hold
+
+   // URL of the home database, null when admission is off
+   private final String _url;
+   private final int _total;
+   private final int[] _limits;
+   private final int _queueCapacity;
+   private final long _shedMillis;
+
+   // guarded by this: the admission session and the slots and tickets this
+   // process holds, which the session could take again since advisory locks
+   // are reentrant
+   private Connection _connection = null;
+   private final boolean[] _held;
+   private final boolean[][] _tickets;
+   private final long[] _admitted = new long[CLASSES.length];
+   private final long[] _waitNanos = new long[CLASSES.length];
+
+   // the class of the current thread's work
+   private final ThreadLocal<Priority> _current = ThreadLocal.withInitial(() -> Priority.BROWSE);
+
+   /**
+    * Creates an admission controller.  The admission connection is opened
+    * on first use.
+    *
+    * @param url the connection URL of the home database, null to admit everything
+    * @param total the most terminals running work at once
+    * @param limits the most terminals running work of each class at once, highest class first
+    * @param queueCapacity the most terminals waiting with work of one class at once
+    * @param shedMillis the longest work of the lowest class waits before it is shed
+    */
+   public AdmissionControl (String url, int total, int[] limits, int queueCapacity, long shedMillis) {
+      this._url = url;
+      this._total = Math.max(1, total);
+      this._limits = new int[CLASSES.length];
+      for (int i = 0; i < CLASSES.length; i++)
+         this._limits[i] = Math.max(1, Math.min(limits[i], this._total));
+      this._queueCapacity = Math.max(0, queueCapacity);
+      // a lock_timeout of 0 would wait forever
+      this._shedMillis = Math.max(1, shedMillis);
+      this._held = new boolean[this._total];
+      this._tickets = new boolean[CLASSES.length][this._queueCapacity];
+   }//end AdmissionControl
+
+   /**
+    * Creates an admission controller configured from the cafe.admission.*
+    * system properties.  By default order entry may use every slot,
+    * browsing three quarters of them and management a quarter.
+    *
+    * @param url the connection URL of the home database
+    * @return the configured admission controller
+    */
+   public static AdmissionControl fromSystemProperties (String url) {
+      int total = Integer.getInteger("cafe.admission.total", DEFAULT_TOTAL);
+      int[] defaults = { total, Math.max(1, total * 3 / 4), Math.max(1, total / 4) };
+      int[] limits = new int[CLASSES.length];
+      for (int i = 0; i < CLASSES.length; i++)
+         limits[i] = Integer.getInteger("cafe.admission.limit." + CLASSES[i].name().toLowerCase(), defaults[i]);
+      return new AdmissionControl("false".equals(System.getProperty("cafe.admission")) ? null : url,
+                                  total, limits,
+                                  Integer.getInteger("cafe.admission.queue", DEFAULT_QUEUE),
+                                  Long.getLong("cafe.admission.shed.ms", DEFAULT_SHED_MS));
+   }//end fromSystemProperties
+
+   /**
+    * Sets the class of the work the current thread does from now on.  A
+    * slot held for another class is given back.
+    *
+    * @param priority the priority class
+    */
+   public void setPriority (Priority priority) {
+      this._current.set(priority);
+      Hold hold = HOLD.get();
+      if (hold.owner == this && hold.c != priority.ordinal())
+         idle();
+   }//end setPriority
+
+   /**
+    * @return the class of the work the current thread does
+    */
+   public Priority priority () {
+      return this._current.get();
+   }
+
+   /**
+    * Admits a query of the current thread's class, waiting for a slot unless
+    * the thread holds one.  Every call must be paired with a call to release.
+    *
+    * @throws java.sql.SQLException when the query is refused or shed
+    */
+   public void acquire () throws SQLException {
+      acquire(this._current.get());
+   }
+
+   /**
+    * Admits a query of the given class, waiting for a slot unless the thread
+    * holds one.  Every call must be paired with a call to release on the
+    * same thread.
+    *
+    * @param priority the priority class
+    * @throws java.sql.SQLException when the query is refused or shed
+    */
+   public void acquire (Priority priority) throws SQLException {
+      Hold hold = HOLD.get();
+      if (hold.owner == this) {
+         hold.depth++;
+         return;
+      }
+      int c = priority.ordinal();
+      int slot = (this._url == null) ? UNLIMITED : take(priority);
+      hold.owner = this;
+      hold.c = c;
+      hold.slot = slot;
+      hold.depth = 1;
+   }//end acquire
+
+   /**
+    * Ends a query admitted by acquire.  The slot stays with the thread until
+    * it goes idle.
+    */
+   public void release () {
+      Hold hold = HOLD.get();
+      if (hold.owner == this && hold.depth > 0)
+         hold.depth--;
+   }//end release
+
+   /**
+    * Gives back the slot of the current thread, unless a query of it is
+    * running.  Terminals call it before they wait on the keyboard.
+    */
+   public static void idle () {
+      Hold hold = HOLD.get();
+      if (hold.owner == null || hold.depth > 0)
+         return;
+      AdmissionControl owner = hold.owner;
+      hold.owner = null;
+      if (hold.slot >= 0)
+         owner.free(hold.c, hold.slot);
+   }//end idle
+
+   /*
+    * Waits for a slot of the class, returns it or UNLIMITED when admitted
+    * without one
+    **/
+   private int take (Priority priority) throws SQLException {
+      int c = priority.ordinal();
+      long start = System.nanoTime();
+
+      // nobody of this class or a higher one is waiting, take a slot straight away
+      int slot = trySlot(c, c + 1);
+      if (slot == WAIT) {
+         int ticket = tryTicket(c);
+         if (ticket < 0) {
+            shed(c);
+            throw new SQLException("Cafe is busy, please try again (" + priority + " queue is full)");
+         }
+         try {
+            while ((slot = waitSlot(c, ticket)) == WAIT) {
+               if (priority == LOWEST) {
+                  shed(c);
+                  throw new SQLException("Cafe is busy, please try again (" + priority + " request shed)");
+               }
+               // another slot may have come free meanwhile
+               if ((slot = trySlot(c, c)) != WAIT)
+                  break;
+            }//end while
+         }finally {
+            synchronized (this) {
+               if (ticket < this._queueCapacity)
+                  this._tickets[c][ticket] = false;
+            }
+            if (ticket != Integer.MAX_VALUE)
+               unlock(String.format("pg_advisory_unlock(%d, %d)", QUEUE_KEY + c, ticket));
+         }//end try
+      }//end if
+      synchronized (this) {
+         this._admitted[c]++;
+         this._waitNanos[c] += System.nanoTime() - start;
+      }
+      return slot;
+   }//end take
+
+   /*
+    * Takes a free slot of class c unless a query of a class below waiting
+    * waits.  Returns the slot, WAIT when the query has to wait and UNLIMITED
+    * when admitted without a slot because the admission connection failed.
+    **/
+   private synchronized int trySlot (int c, int waiting) {
+      // the fenced subquery drops the slots held here before any is locked,
+      // and the highest free slot is taken to keep the low ones for limited
+      // classes
+      String sql = String.format(
+         "SELECT s, pg_advisory_lock(%d, s) FROM (SELECT s FROM generate_series(%d, 0, -1) s " +
+         "WHERE s NOT IN (%s) AND NOT EXISTS (SELECT 1 %s AND classid >= %d AND classid < %d) OFFSET 0) free " +
+         "WHERE pg_try_advisory_lock(%d, s) LIMIT 1",
+         RUN_KEY + c, this._limits[c] - 1, held(this._held), LOCKS, QUEUE_KEY, QUEUE_KEY + waiting, SLOT_KEY);
+      try (Statement stmt = connection().createStatement();
+           ResultSet rs = stmt.executeQuery(sql)) {
+         if (!rs.next())
+            return WAIT;
+         int slot = rs.getInt(1);
+         this._held[slot] = true;
+         return slot;
+      }catch (SQLException e) {
+         fail(e);
+         return UNLIMITED;
+      }//end try
+   }//end trySlot
+
+   /*
+    * Blocks on one slot of class c, chosen by the ticket so waiters spread
+    * over the slots, high slots first.  Returns the slot, WAIT when
+    * lock_timeout expired and UNLIMITED when the admission connection failed.
+    **/
+   private int waitSlot (int c, int ticket) {
+      if (ticket == Integer.MAX_VALUE)
+         return UNLIMITED;
+      int slot = this._limits[c] - 1 - ticket % this._limits[c];
+      Connection conn;
+      synchronized (this) {
+         for (int i = 0; this._held[slot]; i++) {
+            // this process holds every slot of the class
+            if (i == this._limits[c])
+               return WAIT;
+            slot = (slot == 0) ? this._limits[c] - 1 : slot - 1;
+         }
+         conn = this._connection;
+         if (conn == null)
+            return UNLIMITED;
+         this._held[slot] = true;
+      }
+      // not synchronized: the wait must not hold up the releases of other threads
+      try (Statement stmt = conn.createStatement()) {
+         stmt.executeQuery(String.format("SELECT pg_advisory_lock(%d, %d), pg_advisory_lock(%d, %d)",
+                                         SLOT_KEY, slot, RUN_KEY + c, slot)).close();
+         return slot;
+      }catch (SQLException e) {
+         synchronized (this) {
+            this._held[slot] = false;
+            if (LOCK_NOT_AVAILABLE.equals(e.getSQLState()))
+               return WAIT;
+            fail(e);
+            return UNLIMITED;
+         }
+      }//end try
+   }//end waitSlot
+
+   /*
+    * Takes a queue ticket of class c, -1 when the queue is full
+    **/
+   private synchronized int tryTicket (int c) {
+      if (this._queueCapacity == 0)
+         return -1;
+      String sql = String.format("SELECT i FROM (SELECT i FROM generate_series(0, %d) i WHERE i NOT IN (%s) OFFSET 0) free " +
+                                 "WHERE pg_try_advisory_lock(%d, i) LIMIT 1",
+                                 this._queueCapacity - 1, held(this._tickets[c]), QUEUE_KEY + c);
+      try (Statement stmt = connection().createStatement();
+           ResultSet rs = stmt.executeQuery(sql)) {
+         if (!rs.next())
+            return -1;
+         int ticket = rs.getInt(1);
+         this._tickets[c][ticket] = true;
+         return ticket;
+      }catch (SQLException e) {
+         fail(e);
+         // the slot query fails open too
+         return Integer.MAX_VALUE;
+      }//end try
+   }//end tryTicket
+
+   // the run lock goes first so the slot never shows up running for nobody
+   private synchronized void free (int c, int slot) {
+      this._held[slot] = false;
+      unlock(String.format("pg_advisory_unlock(%d, %d), pg_advisory_unlock(%d, %d)",
+                           RUN_KEY + c, slot, SLOT_KEY, slot));
+   }//end free
+
+   private synchronized void unlock (String unlocks) {
+      if (this._connection == null)
+         return;
+      try (Statement stmt = this._connection.createStatement()) {
+         stmt.executeQuery("SELECT " + unlocks).close();
+      }catch (SQLException e) {
+         fail(e);
+      }
+   }//end unlock
+
+   private synchronized void shed (int c) {
+      try (Statement stmt = connection().createStatement()) {
+         stmt.executeQuery("SELECT nextval('" + sequence(CLASSES[c]) + "')").close();
+      }catch (SQLException e) {
+         // the sequences are missing from databases created before them
+      }
+   }//end shed
+
+   // the ids marked in held, as an SQL list
+   private static String held (boolean[] held) {
+      StringBuilder ids = new StringBuilder("-1");
+      for (int i = 0; i < held.length; i++) {
+         if (held[i])
+            ids.append(", ").append(i);
+      }
+      return ids.toString();
+   }//end held
+
+   private Connection connection () throws SQLException {
+      if (this._connection == null) {
+         this._connection = DriverManager.getConnection(this._url);
+         try (Statement stmt = this._connection.createStatement()) {
+            stmt.execute("SET lock_timeout = " + this._shedMillis);
+         }
+      }
+      return this._connection;
+   }//end connection
+
+   // drops the session, its locks go with it; the next query reconnects
+   private void fail (SQLException e) {
+      System.err.println("Admission control unavailable: " + e.getMessage());
+      cleanup();
+      Arrays.fill(this._held, false);
+      for (boolean[] tickets : this._tickets)
+         Arrays.fill(tickets, false);
+   }//end fail
+
+   private static String sequence (Priority priority) {
+      return "cafe_shed_" + priority.name().toLowerCase();
+   }
+
+   /**
+    * @param priority the priority class
+    * @return the number of queries of the class waiting for a slot on every terminal
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public synchronized int queueDepth (Priority priority) throws SQLException {
+      return count(String.format("SELECT count(*) %s AND classid = %d", LOCKS, QUEUE_KEY + priority.ordinal()));
+   }
+
+   /**
+    * @param priority the priority class
+    * @return the number of queries of the class running on every terminal
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public synchronized int running (Priority priority) throws SQLException {
+      return count(String.format("SELECT count(*) %s AND classid = %d", LOCKS, RUN_KEY + priority.ordinal()));
+   }
+
+   /**
+    * @param priority the priority class
+    * @return the number of queries of the class refused or shed so far on
+    *         every terminal, or -1 when the database does not count them
+    */
+   public synchronized long shedCount (Priority priority) {
+      String sql = "SELECT CASE WHEN is_called THEN last_value ELSE 0 END FROM " + sequence(priority);
+      try {
+         return count(sql);
+      }catch (SQLException e) {
+         return -1;
+      }
+   }//end shedCount
+
+   private int count (String sql) throws SQLException {
+      try (Statement stmt = connection().createStatement();
+           ResultSet rs = stmt.executeQuery(sql)) {
+         return rs.next() ? rs.getInt(1) : 0;
+      }
+   }//end count
+
+   /**
+    * Outputs the running, queued and shed counts of every class across all
+    * terminals, and the queries admitted here with their average wait, to
+    * standard out.
+    */
+   public synchronized void printMetrics () {
+      if (this._url == null) {
+         System.out.println("Admission control is off.");
+         return;
+      }
+      try {
+         System.out.println("class\trunning\tlimit\tqueued\tshed\tadmitted here\tavg wait ms");
+         int running = 0;
+         for (Priority p : CLASSES) {
+            int c = p.ordinal();
+            int n = running(p);
+            running += n;
+            long shed = shedCount(p);
+            double avgWait = (this._admitted[c] == 0) ? 0 : this._waitNanos[c] / 1e6 / this._admitted[c];
+            System.out.println(String.format("%s\t%d\t%d\t%d\t%s\t%d\t%.2f", p, n, this._limits[c], queueDepth(p),
+                                             shed < 0 ? "-" : Long.toString(shed), this._admitted[c], avgWait));
+         }//end for
+         System.out.println(String.format("total\t%d\t%d", running, this._total));
+      }catch (SQLException e) {
+         System.err.println(e.getMessage());
+      }//end try
+   }//end printMetrics
+
+   /**
+    * Closes the admission connection, freeing every slot and ticket held.
+    */
+   public synchronized void cleanup () {
+      if (this._connection == null)
+         return;
+      try {
+         this._connection.close();
+      }catch (SQLException e) {
+         // ignored.
+      }
+      this._connection = null;
+   }//end cleanup
+
+}//end AdmissionControl
@@ -21,8 +21,11 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -34,13 +37,69 @@ public class Cafe {
    //login info for later use
    private static String authorisedUser = null;
 
+   // the five most recent orders of a login with their items, in one query
+   static final String ORDER_HISTORY_QUERY =
+      "SELECT O.orderid, O.timeStampRecieved, I.itemName " +
+      "FROM (SELECT orderid, timeStampRecieved FROM Orders WHERE login = '%s' " +
+      "ORDER BY timeStampRecieved DESC LIMIT 5) O " +
+      "LEFT JOIN ItemStatus I ON I.orderid = O.orderid " +
+      "ORDER BY O.timeStampRecieved DESC, O.orderid";
+
+   // the other queries PlanCheck checks the plans of
+   static final String LOGIN_QUERY = "SELECT * FROM Users WHERE login = '%s' AND password = '%s'";
+   static final String TYPE_QUERY = "SELECT type FROM Users WHERE login = '%s'";
+   static final String USER_INFO_QUERY = "SELECT U.login, U.phoneNum, U.favItems, U.type FROM Users U WHERE U.login = '%s'";
+   static final String MENU_QUERY = "SELECT * FROM Menu M WHERE M.type <> '" + MenuImport.RETIRED + "'";
+   static final String MENU_TYPE_QUERY =
+      "SELECT M.itemName, M.price, M.description FROM Menu M WHERE M.type = '%s' AND M.type <> '" + MenuImport.RETIRED + "'";
+   static final String PRICE_QUERY = "SELECT M.price FROM Menu M WHERE M.itemName = '%s' AND M.type <> '" + MenuImport.RETIRED + "'";
+   static final String MAX_ORDERID_QUERY = "SELECT MAX(O.orderid) FROM Orders O";
+   static final String UNPAID_ITEMS_QUERY =
+      "SELECT O.orderid, I.itemName, I.comments FROM Orders O, ItemStatus I " +
+      "WHERE O.orderid = I.orderid and O.paid = false and O.login = '%s'";
+   static final String ORDER_ITEMS_QUERY = "SELECT I.itemName, I.status FROM ItemStatus I WHERE I.orderid = %s";
+   static final String CURRENT_ORDERS_QUERY =
+      "SELECT O.orderid, O.timeStampRecieved FROM Orders O " +
+      "WHERE O.timeStampRecieved > (now() - interval '24 hours') AND O.paid = false";
+   static final String ITEM_STATUS_UPDATE =
+      "UPDATE ItemStatus SET status = '%s', lastUpdated = CURRENT_TIMESTAMP " +
+      "WHERE itemName = '%s' AND orderid IN (%s) AND status = '%s' RETURNING orderid";
+
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // routes read-only queries to replicas when any are configured
+   private ReplicaRouter _router = null;
+
+   // spreads Orders and ItemStatus over several databases, null when unsharded
+   private ShardRouter _shards = null;
+
+   // admits queries by the priority class of the operation running them
+   private AdmissionControl _admission = null;
+
+   // recently viewed orders, invalidated whenever this process changes one
+   private OrderViewCache _orderViews = OrderViewCache.fromSystemProperties();
+
+   // append-only log of Orders and ItemStatus changes, null when disabled
+   private ChangeLog _changeLog = null;
+
+   // every login, phone number and user type, null when disabled
+   private UserDirectory _users = null;
+
+   // open ItemStatus rows grouped into prep batches, loaded on first use
+   private KitchenScheduler _kitchen = null;
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
+                                new InputStreamReader(System.in)) {
+      // the terminal gives back its admission slot while it waits on the keyboard
+      @Override
+      public String readLine () throws IOException {
+         AdmissionControl.idle ();
+         return super.readLine ();
+      }
+   };
 
    /**
     * Creates a new instance of Cafe
@@ -59,6 +118,18 @@ public class Cafe {
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url);
+         this._router = ReplicaRouter.fromSystemProperties(this._connection, dbname);
+         this._shards = ShardRouter.fromSystemProperties(dbname);
+         this._changeLog = ChangeLog.fromSystemProperties();
+         this._admission = AdmissionControl.fromSystemProperties(url);
+         if (!"false".equals(System.getProperty("cafe.userdir"))) {
+            try {
+               this._users = new UserDirectory(url, Long.getLong("cafe.userdir.retry.ms", UserDirectory.DEFAULT_RETRY_MS));
+            }catch (SQLException e) {
+               // every user check falls back to the database
+               System.err.println("Unable to load user directory: " + e.getMessage());
+            }
+         }
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -72,17 +143,27 @@ public class Cafe {
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows changed
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeUpdate (String sql) throws SQLException {
+      this._admission.acquire ();
+      try {
+         // creates a statement object
+         Statement stmt = this._connection.createStatement ();
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+         // issues the update instruction
+         int rowCount = stmt.executeUpdate (sql);
 
-      // close the instruction
-      stmt.close ();
+         // close the instruction
+         stmt.close ();
+
+         // keep our following reads on the primary until replicas catch up
+         this._router.recordWrite ();
+         return rowCount;
+      }finally {
+         this._admission.release ();
+      }
    }//end executeUpdate
 
    /**
@@ -95,8 +176,50 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
+      this._admission.acquire ();
+      try {
+         return executeQueryAndPrintResult (this._connection, query);
+      }finally {
+         this._admission.release ();
+      }
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Method to execute a read-only query (i.e. SELECT) on a replica when one
+    * is configured, and output the results to standard out.
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeReadQueryAndPrintResult (String query) throws SQLException {
+      this._admission.acquire ();
+      try {
+         // read in full before printing, so a retry on the primary prints nothing twice
+         List<String> header = new ArrayList<String>();
+         return printResult (header, executeReadQuery (query, header));
+      }finally {
+         this._admission.release ();
+      }
+   }//end executeReadQueryAndPrintResult
+
+   private static int printResult (List<String> header, List<List<String>> rows) {
+      if (!rows.isEmpty()){
+         for (String column : header)
+            System.out.print(column + "\t");
+         System.out.println();
+      }
+      for (List<String> row : rows){
+         for (String value : row)
+            System.out.print (value + "\t");
+         System.out.println ();
+      }//end for
+      return rows.size();
+   }//end printResult
+
+   private static int executeQueryAndPrintResult (Connection conn, String query) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = conn.createStatement ();
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
@@ -137,9 +260,56 @@ public class Cafe {
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
+   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      this._admission.acquire ();
+      try {
+         return executeQueryAndReturnResult (this._connection, query);
+      }finally {
+         this._admission.release ();
+      }
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute a read-only query (i.e. SELECT) on a replica when one
+    * is configured, and return the results as a list of records.
+    *
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeReadQueryAndReturnResult (String query) throws SQLException {
+      this._admission.acquire ();
+      try {
+         return executeReadQuery (query, null);
+      }finally {
+         this._admission.release ();
+      }
+   }//end executeReadQueryAndReturnResult
+
+   private List<List<String>> executeReadQuery (String query, List<String> header) throws SQLException {
+      Connection conn = this._router.acquireRead ();
+      try {
+         return executeQueryAndReturnResult (conn, query, header);
+      }catch (SQLException e) {
+         if (this._router.isPrimary (conn) || !ReplicaRouter.isConnectionFailure (e))
+            throw e;
+         // the replica is unavailable, rest it and fall back to the primary
+         this._router.markDown (conn);
+         if (header != null)
+            header.clear ();
+         return executeQueryAndReturnResult (this._connection, query, header);
+      }finally {
+         this._router.release (conn);
+      }
+   }//end executeReadQuery
+
+   private static List<List<String>> executeQueryAndReturnResult (Connection conn, String query) throws SQLException {
+      return executeQueryAndReturnResult (conn, query, null);
+   }
+
+   private static List<List<String>> executeQueryAndReturnResult (Connection conn, String query, List<String> header) throws SQLException { 
       // creates a statement object 
-      Statement stmt = this._connection.createStatement (); 
+      Statement stmt = conn.createStatement (); 
  
       // issues the query instruction 
       ResultSet rs = stmt.executeQuery (query); 
@@ -151,6 +321,9 @@ public class Cafe {
       ResultSetMetaData rsmd = rs.getMetaData (); 
       int numCol = rsmd.getColumnCount (); 
       int rowCount = 0; 
+      if (header != null)
+         for (int i=1; i<=numCol; ++i)
+            header.add(rsmd.getColumnName(i));
  
       // iterates through the result set and saves the data returned by the query. 
       boolean outputHeader = false;
@@ -190,6 +363,398 @@ public class Cafe {
        return rowCount;
    }
 
+   /**
+    * @return the admission controller in front of the query methods
+    */
+   public AdmissionControl admission () {
+      return this._admission;
+   }
+
+   /**
+    * Sets the priority class of the queries the current thread runs from
+    * now on.  Every terminal operation sets it first.  The queries between
+    * two keyboard reads are admitted together.
+    *
+    * @param priority the priority class
+    */
+   public void priority (AdmissionControl.Priority priority) {
+      this._admission.setPriority (priority);
+   }
+
+   /**
+    * @return the in-memory user directory, or null when it is disabled or
+    *         out of sync with the other terminals
+    */
+   public UserDirectory users () {
+      if (this._users == null || !this._users.isSynced())
+         return null;
+      return this._users;
+   }
+
+   /**
+    * @return the kitchen prep scheduler, loading it on first use
+    * @throws java.sql.SQLException when failed to load the open items
+    */
+   public synchronized KitchenScheduler kitchen () throws SQLException {
+      if (this._kitchen == null) {
+         KitchenScheduler kitchen = KitchenScheduler.fromSystemProperties ();
+         kitchen.reload (this);
+         this._kitchen = kitchen;
+      }
+      return this._kitchen;
+   }//end kitchen
+
+   /**
+    * @return true when Orders and ItemStatus are spread over several shards
+    */
+   public boolean isSharded () {
+      return this._shards != null;
+   }
+
+   /**
+    * Method to execute an update SQL statement on the Orders and ItemStatus
+    * rows of the given login.
+    *
+    * @param login the login owning the order
+    * @param sql the input SQL string
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeShardUpdate (String login, String sql) throws SQLException {
+      this._admission.acquire ();
+      try {
+         if (this._shards == null) {
+            executeUpdate (sql);
+            return;
+         }
+         this._shards.executeUpdate (this._shards.shardForLogin (login), sql);
+      }finally {
+         this._admission.release ();
+      }
+   }//end executeShardUpdate
+
+   /**
+    * Method to execute a read-only query over the Orders and ItemStatus rows
+    * of the given login, and output the results to standard out.
+    *
+    * @param login the login owning the orders
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeShardQueryAndPrintResult (String login, String query) throws SQLException {
+      this._admission.acquire ();
+      try {
+         if (this._shards == null)
+            return executeReadQueryAndPrintResult (query);
+         return executeQueryAndPrintResult (this._shards.connection (this._shards.shardForLogin (login)), query);
+      }finally {
+         this._admission.release ();
+      }
+   }//end executeShardQueryAndPrintResult
+
+   /**
+    * Method to execute an update SQL statement on the Orders and ItemStatus
+    * rows of the given order.
+    *
+    * @param orderid the order id
+    * @param sql the input SQL string
+    * @return the number of rows changed
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeOrderUpdate (String orderid, String sql) throws SQLException {
+      this._admission.acquire ();
+      try {
+         int id = Integer.parseInt (orderid.trim ());
+         try {
+            if (this._shards == null)
+               return executeUpdate (sql);
+            return this._shards.executeUpdate (this._shards.shardForOrder (id), sql);
+         }finally {
+            invalidateOrder (id);
+         }
+      }finally {
+         this._admission.release ();
+      }
+   }//end executeOrderUpdate
+
+   /**
+    * Method to execute a read-only query over the Orders and ItemStatus rows
+    * of the given order, and return the results as a list of records.
+    *
+    * @param orderid the order id
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeOrderQueryAndReturnResult (String orderid, String query) throws SQLException {
+      this._admission.acquire ();
+      try {
+         if (this._shards == null)
+            return executeReadQueryAndReturnResult (query);
+         int shard = this._shards.shardForOrder (Integer.parseInt (orderid.trim ()));
+         return executeQueryAndReturnResult (this._shards.connection (shard), query);
+      }finally {
+         this._admission.release ();
+      }
+   }//end executeOrderQueryAndReturnResult
+
+   /**
+    * Method to move one item of several orders from one status to the next,
+    * with one update per database.  Rows no longer in the expected status,
+    * e.g. moved on by another terminal, are left alone.  Every changed row
+    * is recorded in the change log.
+    *
+    * @param itemName the item name
+    * @param orderids the ids of the orders
+    * @param from the status the rows are expected to be in
+    * @param status the new status
+    * @return the ids of the orders whose row changed
+    * @throws java.sql.SQLException when update failed
+    */
+   public List<Integer> executeItemStatusUpdate (String itemName, List<Integer> orderids, String from, String status) throws SQLException {
+      this._admission.acquire ();
+      try {
+         Map<Integer, StringBuilder> idsByShard = new HashMap<Integer, StringBuilder>();
+         for (int orderid : orderids) {
+            int shard = (this._shards == null) ? 0 : this._shards.shardForOrder (orderid);
+            StringBuilder ids = idsByShard.computeIfAbsent (shard, k -> new StringBuilder ());
+            if (ids.length () > 0)
+               ids.append (", ");
+            ids.append (orderid);
+         }//end for
+         List<Integer> changed = new ArrayList<Integer>();
+         for (Map.Entry<Integer, StringBuilder> entry : idsByShard.entrySet ()) {
+            String sql = String.format (ITEM_STATUS_UPDATE, status.replace ("'", "''"), itemName.replace ("'", "''"),
+                                        entry.getValue (), from.replace ("'", "''"));
+            List<List<String>> rows;
+            if (this._shards == null) {
+               rows = executeQueryAndReturnResult (sql);
+               this._router.recordWrite ();
+            }
+            else
+               rows = this._shards.query (entry.getKey (), sql, null);
+            for (List<String> row : rows)
+               changed.add (Integer.parseInt (row.get (0).trim ()));
+         }//end for
+         for (int orderid : changed) {
+            invalidateOrder (orderid);
+            logItemChange (ChangeLog.OP_UPDATE, orderid, itemName, status, null);
+         }
+         return changed;
+      }finally {
+         this._admission.release ();
+      }
+   }//end executeItemStatusUpdate
+
+   /**
+    * Method to fetch an order and all of its items with one query.  Views
+    * are served from the order view cache while the order is unchanged.
+    *
+    * @param orderid the order id
+    * @return the order view, or null when the order does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public OrderView getOrderView (int orderid) throws SQLException {
+      OrderView view = this._orderViews.get (orderid);
+      if (view != null)
+         return view;
+      long version = this._orderViews.version (orderid);
+      view = OrderView.fromRows (executeOrderQueryAndReturnResult (
+         Integer.toString (orderid), String.format (OrderView.QUERY, orderid)));
+      if (view != null)
+         this._orderViews.put (view, version);
+      return view;
+   }//end getOrderView
+
+   /**
+    * Method to record a change of an Orders row in the change log.
+    *
+    * @param op ChangeLog.OP_INSERT or ChangeLog.OP_UPDATE
+    * @param orderid the order id
+    * @param login the login of the order, null when unchanged
+    * @param paid 1 or 0, -1 when unchanged
+    * @param total the order total, NaN when unchanged
+    */
+   public void logOrderChange (byte op, int orderid, String login, int paid, float total) {
+      if (this._changeLog == null)
+         return;
+      try {
+         this._changeLog.appendOrder (op, orderid, login, paid, total);
+      }catch (IOException e) {
+         // the database change is already made, only report the log failure
+         System.err.println ("Unable to write change log: " + e.getMessage ());
+      }
+   }//end logOrderChange
+
+   /**
+    * Method to record a change of an ItemStatus row in the change log.
+    *
+    * @param op ChangeLog.OP_INSERT or ChangeLog.OP_UPDATE
+    * @param orderid the order id
+    * @param itemName the item name
+    * @param status the new status, null when unchanged
+    * @param comments the new comments, null when unchanged
+    */
+   public void logItemChange (byte op, int orderid, String itemName, String status, String comments) {
+      if (this._kitchen != null && status != null)
+         this._kitchen.apply (orderid, itemName.trim (), status, System.currentTimeMillis ());
+      if (this._changeLog == null)
+         return;
+      try {
+         this._changeLog.appendItem (op, orderid, itemName, status, comments);
+      }catch (IOException e) {
+         // the database change is already made, only report the log failure
+         System.err.println ("Unable to write change log: " + e.getMessage ());
+      }
+   }//end logItemChange
+
+   /**
+    * Method to drop the cached view of an order after changing it.
+    *
+    * @param orderid the order id
+    */
+   public void invalidateOrder (int orderid) {
+      this._orderViews.invalidate (orderid);
+   }
+
+   /**
+    * Method to execute a read-only query over the Orders and ItemStatus rows
+    * of the given order, and output the results to standard out.
+    *
+    * @param orderid the order id
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeOrderQueryAndPrintResult (String orderid, String query) throws SQLException {
+      this._admission.acquire ();
+      try {
+         if (this._shards == null)
+            return executeReadQueryAndPrintResult (query);
+         int shard = this._shards.shardForOrder (Integer.parseInt (orderid.trim ()));
+         return executeQueryAndPrintResult (this._shards.connection (shard), query);
+      }finally {
+         this._admission.release ();
+      }
+   }//end executeOrderQueryAndPrintResult
+
+   /**
+    * Method to execute a read-only query over Orders and ItemStatus on every
+    * shard in parallel and return the merged results.
+    *
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeFanOutQueryAndReturnResult (String query) throws SQLException {
+      this._admission.acquire ();
+      try {
+         if (this._shards == null)
+            return executeReadQueryAndReturnResult (query);
+         return this._shards.fanOut (query, null);
+      }finally {
+         this._admission.release ();
+      }
+   }//end executeFanOutQueryAndReturnResult
+
+   /**
+    * Method to execute a read-only query over Orders and ItemStatus on every
+    * shard in parallel and output the merged results to standard out.
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeFanOutQueryAndPrintResult (String query) throws SQLException {
+      this._admission.acquire ();
+      try {
+         if (this._shards == null)
+            return executeReadQueryAndPrintResult (query);
+         List<String> header = new ArrayList<String>();
+         return printResult (header, this._shards.fanOut (query, header));
+      }finally {
+         this._admission.release ();
+      }
+   }//end executeFanOutQueryAndPrintResult
+
+   /**
+    * Method to execute an update SQL statement on Menu.  When sharded, the
+    * statement is applied to the home database and every shard, see
+    * ShardRouter.executeUpdateEverywhere for what a failure leaves behind.
+    *
+    * @param sql the input SQL string
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeMenuUpdate (String sql) throws SQLException {
+      this._admission.acquire ();
+      try {
+         if (this._shards == null) {
+            executeUpdate (sql);
+            return;
+         }
+         this._shards.executeUpdateEverywhere (this._connection, sql);
+         this._router.recordWrite ();
+      }finally {
+         this._admission.release ();
+      }
+   }//end executeMenuUpdate
+
+   /**
+    * Method to execute a batch of update SQL statements on Menu in one
+    * transaction.  When sharded, the batch is applied to the home database
+    * and every shard, see ShardRouter.executeUpdateEverywhere for what a
+    * failure leaves behind.
+    *
+    * @param sqls the input SQL strings
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeMenuBatch (List<String> sqls) throws SQLException {
+      this._admission.acquire ();
+      try {
+         if (this._shards != null) {
+            this._shards.executeUpdateEverywhere (this._connection, sqls);
+            this._router.recordWrite ();
+            return;
+         }
+         this._connection.setAutoCommit (false);
+         try {
+            Statement stmt = this._connection.createStatement ();
+            for (String sql : sqls)
+               stmt.addBatch (sql);
+            stmt.executeBatch ();
+            stmt.close ();
+            this._connection.commit ();
+         }catch (SQLException e) {
+            this._connection.rollback ();
+            throw e;
+         }finally {
+            this._connection.setAutoCommit (true);
+            this._router.recordWrite ();
+         }
+      }finally {
+         this._admission.release ();
+      }
+   }//end executeMenuBatch
+
+   /**
+    * Method to allocate the id of a new order.
+    *
+    * @param login the login placing the order
+    * @return the new order id
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int nextOrderId (String login) throws SQLException {
+      this._admission.acquire ();
+      try {
+         if (this._shards != null)
+            return this._shards.nextOrderId (login);
+         List<List<String>> orderidList = executeQueryAndReturnResult (MAX_ORDERID_QUERY);
+         return Integer.parseInt(orderidList.get(0).get(0)) + 1;
+      }finally {
+         this._admission.release ();
+      }
+   }//end nextOrderId
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current 
@@ -213,6 +778,21 @@ public class Cafe {
     */
    public void cleanup(){
       try{
+         if (this._router != null){
+            this._router.cleanup ();
+         }//end if
+         if (this._admission != null){
+            this._admission.cleanup ();
+         }//end if
+         if (this._users != null){
+            this._users.cleanup ();
+         }//end if
+         if (this._changeLog != null){
+            this._changeLog.close ();
+         }//end if
+         if (this._shards != null){
+            this._shards.cleanup ();
+         }//end if
          if (this._connection != null){
             this._connection.close ();
          }//end if
@@ -308,6 +888,7 @@ public class Cafe {
                     System.out.println("6. View Order Status");
                     System.out.println("7. Update User Info");
                     System.out.println("8. View User Info");
+                    System.out.println("10. View Prep Batches");
                     System.out.println(".........................");
                     System.out.println("9. Log out");
                       switch (readChoice()){
@@ -321,6 +902,7 @@ public class Cafe {
                        case 7: UpdateUserInfo(esql, authorisedUser, 0); break;
                        case 8: ViewUserInfo(esql, authorisedUser); break;
                        case 9: usermenu = false; break;
+                       case 10: PrepBatches(esql); break;
                        default : System.out.println("Unrecognized choice!"); break;
 		      }//end switch
 		  } break;
@@ -337,6 +919,9 @@ public class Cafe {
                     System.out.println("6. View Order Status");
                     System.out.println("7. Update User Info");
                     System.out.println("8. Update Menu");
+                    System.out.println("10. View Prep Batches");
+                    System.out.println("11. View Admission Metrics");
+                    System.out.println("12. Bulk Menu Import");
                     System.out.println(".........................");
                     System.out.println("9. Log out");
                       switch (readChoice()){
@@ -350,6 +935,9 @@ public class Cafe {
                        case 7: ManagerUpdateUserInfo(esql, authorisedUser); break;
                        case 8: UpdateMenu(esql); break;
                        case 9: usermenu = false; break;
+                       case 10: PrepBatches(esql); break;
+                       case 11: ViewAdmissionMetrics(esql); break;
+                       case 12: BulkMenuImport(esql); break;
                        default : System.out.println("Unrecognized choice!"); break;
 		      }//end switch
 		  } break;
@@ -403,6 +991,7 @@ public class Cafe {
     * Creates a new user with privided login, password and phoneNum
     **/
    public static void CreateUser(Cafe esql){
+      esql.priority(AdmissionControl.Priority.BROWSE);
       try{
          System.out.print("\tEnter user login: ");
          String login = in.readLine();
@@ -414,9 +1003,21 @@ public class Cafe {
 	 String type="Customer";
 	 String favItems="";
 
+         // known duplicates are refused before the INSERT
+         if (esql.users() != null && esql.users().contains(login)) {
+            System.out.println ("User login already exists!");
+            return;
+         }
+         if (esql.users() != null && esql.users().containsPhone(phone)) {
+            System.out.println ("Phone number is already in use!");
+            return;
+         }
+
 	 String query = String.format("INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone, login, password, favItems, type);
 
          esql.executeUpdate(query);
+         if (esql.users() != null)
+            esql.users().add(login, phone, type);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -428,13 +1029,18 @@ public class Cafe {
     * @return User login or null is the user does not exist
     **/
    public static String LogIn(Cafe esql){
+      esql.priority(AdmissionControl.Priority.BROWSE);
       try{
          System.out.print("\tEnter user login: ");
          String login = in.readLine();
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM Users WHERE login = '%s' AND password = '%s'", login, password);
+         // logins missing from the directory cannot succeed
+         if (esql.users() != null && !esql.users().contains(login))
+            return null;
+
+         String query = String.format(LOGIN_QUERY, login, password);
          int userNum = esql.executeQuery(query);
 	 if (userNum > 0)
 		return login;
@@ -447,7 +1053,12 @@ public class Cafe {
 
    public static String find_type(Cafe esql, String authorisedUser){
       try {
-         String query = String.format("SELECT type FROM Users WHERE login = '%s'", authorisedUser);
+         if (esql.users() != null) {
+            String known = esql.users().type(authorisedUser);
+            if (known != null)
+               return known;
+         }
+         String query = String.format(TYPE_QUERY, authorisedUser);
          List<String> type = new ArrayList<String>();
          List<List<String>> typeList = new ArrayList<List<String>>();
         
@@ -468,17 +1079,22 @@ public class Cafe {
          String[] searchString = { "a user's login ID", "an item name", "an order id" };
          String[] primaryKey = { "login", "itemName", "orderID" };
          String[] table = { "Users", "Menu", "Orders"};
+         // retired items are only kept for past orders
+         String[] visible = { "", " AND type <> '" + MenuImport.RETIRED + "'", "" };
          
          System.out.println("Please enter " + searchString[searchType] + ": ");
          String search = in.readLine();
          String query = "SELECT DISTINCT(" + primaryKey[searchType] + ") FROM " + 
                         table[searchType] + " WHERE " + primaryKey[searchType] + 
-                        " LIKE '%" + search + "%'";
+                        " LIKE '%" + search + "%'" + visible[searchType];
          
          List<String> results = new ArrayList<String>();
          List<List<String>> resultsList = new ArrayList<List<String>>();
          
-         resultsList = esql.executeQueryAndReturnResult(query);
+         if (searchType == 2)
+            resultsList = esql.executeFanOutQueryAndReturnResult(query);
+         else
+            resultsList = esql.executeReadQueryAndReturnResult(query);
          for(int i = 0; i < resultsList.size(); i++) {
             results.add(resultsList.get(i).get(0));
             System.out.println(i + ". " + resultsList.get(i).get(0));
@@ -495,7 +1111,7 @@ public class Cafe {
          }
          
          if(searchType != 2) {
-            query = "SELECT " + primaryKey[searchType] + " FROM " + table[searchType] + " WHERE " + primaryKey[searchType] + " = '" + search + "';";
+            query = "SELECT " + primaryKey[searchType] + " FROM " + table[searchType] + " WHERE " + primaryKey[searchType] + " = '" + search + "'" + visible[searchType] + ";";
          }
          else {
             query = "SELECT " + primaryKey[searchType] + " FROM " + table[searchType] + " WHERE " + primaryKey[searchType] + " = " + search + ";";
@@ -504,7 +1120,10 @@ public class Cafe {
          List<String> getResult = new ArrayList<String>();
          List<List<String>> getResultList = new ArrayList<List<String>>();
          
-         getResultList = esql.executeQueryAndReturnResult(query);
+         if (searchType == 2)
+            getResultList = esql.executeFanOutQueryAndReturnResult(query);
+         else
+            getResultList = esql.executeReadQueryAndReturnResult(query);
          for(int i = 0; i < getResultList.size(); i++) {
             getResult.add(getResultList.get(i).get(0));
          }
@@ -518,11 +1137,12 @@ public class Cafe {
    }
 
    public static void BrowseMenuName(Cafe esql){
+      esql.priority(AdmissionControl.Priority.BROWSE);
       try {
          String name = getSearchResultsAndPrintQuery(esql, 1);
          String query = "SELECT M.itemName, M.price, M.description FROM Menu M WHERE M.itemName = '";
          query += name + "';";
-	      esql.executeQueryAndPrintResult(query);
+	      esql.executeReadQueryAndPrintResult(query);
       }
       catch (Exception except) {
          System.err.println (except.getMessage());
@@ -530,12 +1150,12 @@ public class Cafe {
    }//end
 
    public static void BrowseMenuType(Cafe esql){
+      esql.priority(AdmissionControl.Priority.BROWSE);
       try {
          System.out.print("\tEnter item type: ");
          String type = in.readLine();
-         String query = "SELECT M.itemName, M.price, M.description FROM Menu M WHERE M.type = '";
-         query += type + "';";
-	      esql.executeQueryAndPrintResult(query);
+         String query = String.format(MENU_TYPE_QUERY, type);
+	      esql.executeReadQueryAndPrintResult(query);
       }
       catch (Exception except) {
          System.err.println (except.getMessage());
@@ -543,22 +1163,16 @@ public class Cafe {
    }//end
 
    public static void AddOrder(Cafe esql, String authorisedUser){
+      esql.priority(AdmissionControl.Priority.ORDER_ENTRY);
       try {
-         List<String> orderid = new ArrayList<String>();
-         List<List<String>> orderidList = new ArrayList<List<String>>();
-         
-         String query = "SELECT MAX(O.orderid) FROM Orders O";
-         orderidList = esql.executeQueryAndReturnResult(query);
-         for(int i = 0; i < orderidList.size(); i++) {
-           orderid.add(orderidList.get(i).get(0));
-         }
-         
          String item = null;
          double get_total = 0;
-         int get_orderid = Integer.parseInt(orderid.get(0)) + 1;
+         int get_orderid = esql.nextOrderId(authorisedUser);
          
-         query = String.format("INSERT INTO Orders(orderid, login, paid, timeStampRecieved, total) VALUES (%d, '%s', false, CURRENT_TIMESTAMP, %f)", get_orderid, authorisedUser, get_total);
-         esql.executeUpdate(query);   
+         String query = String.format("INSERT INTO Orders(orderid, login, paid, timeStampRecieved, total) VALUES (%d, '%s', false, CURRENT_TIMESTAMP, %f)", get_orderid, authorisedUser, get_total);
+         esql.executeShardUpdate(authorisedUser, query);   
+         esql.invalidateOrder(get_orderid);
+         esql.logOrderChange(ChangeLog.OP_INSERT, get_orderid, authorisedUser, 0, (float) get_total);
          
          while (item != "q" || item != "Q") {
             System.out.print("\tEnter new item name (q to quit): ");
@@ -567,14 +1181,7 @@ public class Cafe {
             if (item.equalsIgnoreCase("q")){
               break;
             }
-            String query_item = String.format("SELECT M.price FROM Menu M WHERE M.itemName = '%s'", item);
-            
-            System.out.print("\tEnter comments: ");
-            String comments = in.readLine();
-            // Add ItemStatus
-            String query_status = String.format("INSERT INTO ItemStatus(orderid, itemName, lastUpdated, status, comments) VALUES (%d, '%s', CURRENT_TIMESTAMP, 'Hasn''t Started', '%s')",  get_orderid, item, comments);
-            esql.executeUpdate(query_status);
-            
+            String query_item = String.format(PRICE_QUERY, item);
             List<String> total = new ArrayList<String>();
             List<List<String>> totalList = new ArrayList<List<String>>();
            
@@ -582,13 +1189,28 @@ public class Cafe {
             for(int i = 0; i < totalList.size(); i++) {
               total.add(totalList.get(i).get(0));
             }
+            // unknown and retired items cannot be ordered
+            if (total.isEmpty()) {
+               System.out.println(item + " is not on the menu.");
+               continue;
+            }
+            
+            System.out.print("\tEnter comments: ");
+            String comments = in.readLine();
+            // Add ItemStatus
+            String query_status = String.format("INSERT INTO ItemStatus(orderid, itemName, lastUpdated, status, comments) VALUES (%d, '%s', CURRENT_TIMESTAMP, 'Hasn''t Started', '%s')",  get_orderid, item, comments);
+            esql.executeShardUpdate(authorisedUser, query_status);
+            esql.invalidateOrder(get_orderid);
+            esql.logItemChange(ChangeLog.OP_INSERT, get_orderid, item, "Hasn't Started", comments);
             
             get_total = get_total + Double.parseDouble(total.get(0));
    	      System.out.println("Order " + get_orderid + " added " + item + " successfully.");
    	      System.out.println("Your current order total is " + get_total);
          }
          query = String.format("UPDATE Orders SET total = %f WHERE orderid = %d", get_total, get_orderid);
-         esql.executeUpdate(query);   
+         esql.executeShardUpdate(authorisedUser, query);   
+         esql.invalidateOrder(get_orderid);
+         esql.logOrderChange(ChangeLog.OP_UPDATE, get_orderid, null, -1, (float) get_total);
       }
       catch (Exception except) {
          System.err.println (except.getMessage());
@@ -596,10 +1218,15 @@ public class Cafe {
    }//end 
 
    public static void UpdateOrder(Cafe esql, String authorisedUser){
+      esql.priority(AdmissionControl.Priority.ORDER_ENTRY);
       try {
          System.out.println("Displaying list of non-paid orders: ");
-         String query = String.format("SELECT O.orderid, I.itemName, I.comments FROM Orders O, ItemStatus I WHERE O.orderid = I.orderid and O.paid = false and O.login = '%s';", authorisedUser);
-	 esql.executeQueryAndPrintResult(query);
+         String query = String.format(UNPAID_ITEMS_QUERY, authorisedUser);
+	 // the primary, as before sharding, so the listing shows our latest writes
+	 if (esql.isSharded())
+	    esql.executeShardQueryAndPrintResult(authorisedUser, query);
+	 else
+	    esql.executeQueryAndPrintResult(query);
 
          String orderID = getSearchResultsAndPrintQuery(esql, 2);
          System.out.println("Enter the item name of the order you wish to update:");
@@ -607,7 +1234,10 @@ public class Cafe {
          System.out.println("Enter new comments: ");
          String newComments = in.readLine();
          query = "UPDATE ItemStatus SET comments = '" + newComments + "' WHERE orderid = " + orderID + " AND itemName = '" + orderName + "';";
-	      esql.executeUpdate(query);
+	      if (esql.executeOrderUpdate(orderID, query) > 0)
+            esql.logItemChange(ChangeLog.OP_UPDATE, Integer.parseInt(orderID.trim()), orderName, null, newComments);
+         else
+            System.out.println("Order " + orderID.trim() + " has no item " + orderName);
       }
       catch (Exception except) {
          System.err.println (except.getMessage());
@@ -615,6 +1245,7 @@ public class Cafe {
    }//end
 
    public static void EmployeeUpdateOrder(Cafe esql){
+      esql.priority(AdmissionControl.Priority.ORDER_ENTRY);
       try {
          System.out.println("1. Update Paid Status");
          System.out.println("2. Update Item Status");
@@ -628,12 +1259,19 @@ public class Cafe {
             case 1:
                query = "UPDATE Orders SET paid = TRUE WHERE orderid = ";
                query += orderID + ";";
-               esql.executeUpdate(query);
+               if (esql.executeOrderUpdate(orderID, query) == 0) {
+                  System.out.println("There is no order " + orderID.trim());
+                  break;
+               }
+               esql.logOrderChange(ChangeLog.OP_UPDATE, Integer.parseInt(orderID.trim()), null, 1, Float.NaN);
                System.out.println("The order is now paid");
                break;
             case 2:
-               query = String.format("SELECT I.itemName, I.status FROM ItemStatus I WHERE I.orderid = %s", orderID);
-               esql.executeQueryAndPrintResult(query);
+               query = String.format(ORDER_ITEMS_QUERY, orderID);
+               if (esql.isSharded())
+                  esql.executeOrderQueryAndPrintResult(orderID, query);
+               else
+                  esql.executeQueryAndPrintResult(query);
                System.out.print("Enter the item you wish to update: ");
                String itemName = in.readLine();
                System.out.print("Enter the new order status: ");
@@ -641,8 +1279,12 @@ public class Cafe {
                
                if(orderStatus.equalsIgnoreCase("Hasn't Started")) orderStatus = "Hasn''t Started";
                query = String.format("UPDATE ItemStatus SET status = '%s' WHERE orderid = %s and itemName = '%s'", orderStatus, orderID, itemName);
+               if (esql.executeOrderUpdate(orderID, query) == 0) {
+                  System.out.println("Order " + orderID.trim() + " has no item " + itemName);
+                  break;
+               }
                System.out.println("The order status has been updated");
-               esql.executeUpdate(query);
+               esql.logItemChange(ChangeLog.OP_UPDATE, Integer.parseInt(orderID.trim()), itemName, orderStatus.replace("''", "'"), null);
                break;
             default:
                System.out.println("Your choice is invalid");
@@ -655,10 +1297,12 @@ public class Cafe {
    }//end
 
    public static void ViewOrderHistory(Cafe esql){
+      esql.priority(AdmissionControl.Priority.BROWSE);
       try {
-         String query = String.format("SELECT O.orderid, O.timeStampRecieved FROM (SELECT * FROM Orders ORDER BY timeStampRecieved DESC LIMIT 5) O WHERE O.login = '%s'", authorisedUser);
+         String query = String.format(ORDER_HISTORY_QUERY, authorisedUser);
          System.out.println("Your 5 most recent Orders: ");
-	 esql.executeQueryAndPrintResult(query);
+         // the orders and their items in one query
+	 esql.executeShardQueryAndPrintResult(authorisedUser, query);
       }
       catch (Exception except) {
          System.err.println (except.getMessage());
@@ -666,6 +1310,7 @@ public class Cafe {
    }//end
 
    public static void UpdateUserInfo(Cafe esql, String authorisedUser, int perm){
+      esql.priority(AdmissionControl.Priority.BROWSE);
       try {
          System.out.println("Please enter the following information to update, press ENTER to skip.");
          
@@ -680,6 +1325,8 @@ public class Cafe {
          if (!phoneNum.isEmpty()) {
             String query = String.format("UPDATE Users SET phoneNum = '%s' WHERE login = '%s'", phoneNum, authorisedUser);
    	      esql.executeUpdate(query);
+            if (esql.users() != null)
+               esql.users().setPhone(authorisedUser, phoneNum);
    	      System.out.println("Updated phone number successfully.");
          }
          else { 
@@ -732,6 +1379,7 @@ public class Cafe {
    }//end
 
    public static void ManagerUpdateUserInfo(Cafe esql, String authorisedUser){
+      esql.priority(AdmissionControl.Priority.MANAGEMENT);
       try {
          boolean pending_selection = true;
           
@@ -761,6 +1409,8 @@ public class Cafe {
          	      if (!typeOfUser.isEmpty()) {
             	      String query = String.format("UPDATE Users SET type = '%s' WHERE login = '%s'", typeOfUser, user);
             	      esql.executeUpdate(query);
+            	      if (esql.users() != null)
+            	         esql.users().setType(user, typeOfUser);
             	      System.out.println("Updated user type successfully.");
          	      }
          	      else {
@@ -785,6 +1435,7 @@ public class Cafe {
    }//end
 
    public static void UpdateMenu(Cafe esql){
+      esql.priority(AdmissionControl.Priority.MANAGEMENT);
       try {
          System.out.println("1. Add new item");
          System.out.println("2. Delete existing item");
@@ -849,7 +1500,7 @@ public class Cafe {
              default: break;
            }
 
-	   esql.executeUpdate(query);
+	   esql.executeMenuUpdate(query);
       }
       catch (Exception except) {
          System.err.println (except.getMessage());
@@ -857,14 +1508,17 @@ public class Cafe {
    }//end
 
    public static void ViewOrderStatus(Cafe esql){
+      esql.priority(AdmissionControl.Priority.BROWSE);
       try {
-         String orderID = getSearchResultsAndPrintQuery(esql, 2);
-         String query = "SELECT * FROM Orders WHERE orderid = ";
-         query += orderID + ";";
-	 esql.executeQueryAndPrintResult(query);
-
-         query = "SELECT I.itemName FROM ItemStatus I WHERE I.orderid = " + orderID + ";";
-         esql.executeQueryAndPrintResult(query);
+         System.out.println("Please enter an order id: ");
+         int orderID = Integer.parseInt(in.readLine().trim());
+         // one joined query, or none while the cached view is current
+         OrderView view = esql.getOrderView(orderID);
+         if (view == null) {
+            System.out.println("Order " + orderID + " was not found.");
+            return;
+         }
+         view.print();
       }
       catch (Exception except) {
          System.err.println (except.getMessage());
@@ -872,19 +1526,86 @@ public class Cafe {
    }//end
 
    public static void ViewCurrentOrder(Cafe esql, String authorisedUser, int perm){
+      esql.priority(AdmissionControl.Priority.ORDER_ENTRY);
       try {
-         String query = String.format("SELECT O.orderid, O.timeStampRecieved FROM Orders O WHERE O.timeStampRecieved > (now() - interval '24 hours') AND O.paid = false");
-	      esql.executeQueryAndPrintResult(query);
+         String query = CURRENT_ORDERS_QUERY;
+	      esql.executeFanOutQueryAndPrintResult(query);
       }
       catch (Exception except) {
          System.err.println (except.getMessage());
       }
    }//end
 
+   public static void PrepBatches(Cafe esql){
+      esql.priority(AdmissionControl.Priority.ORDER_ENTRY);
+      try {
+         KitchenScheduler kitchen = esql.kitchen();
+         boolean pending_selection = true;
+         while (pending_selection) {
+            kitchen.catchUp(esql);
+            List<KitchenScheduler.Batch> batches = kitchen.batches();
+            long now = System.currentTimeMillis();
+            System.out.println("Prep batches, most urgent first: ");
+            for (int i = 0; i < batches.size(); i++) {
+               KitchenScheduler.Batch batch = batches.get(i);
+               System.out.println(i + ". " + batch.itemName + " x" + batch.tickets.size() + "\t" + batch.status +
+                                  "\toldest " + (now - batch.oldest()) / 60000 + " min" +
+                                  (kitchen.urgency(batch, now) >= 1 ? "\tOVERDUE" : "") +
+                                  "\torders " + batch.orderids());
+            }
+            System.out.println("\n" + batches.size() + " batches. Enter a batch number to move it to its next status, or -1 to go back: ");
+            int choice = readChoice();
+            if (choice < 0 || choice >= batches.size()) {
+               pending_selection = false;
+               continue;
+            }
+            KitchenScheduler.Batch batch = batches.get(choice);
+            List<Integer> changed = kitchen.advance(esql, batch);
+            System.out.println(changed.size() + " " + batch.itemName + " are now " + KitchenScheduler.nextStatus(batch.status));
+            if (changed.size() < batch.tickets.size())
+               System.out.println((batch.tickets.size() - changed.size()) + " were already changed on another terminal and were skipped.");
+         }
+      }
+      catch (Exception except) {
+         System.err.println (except.getMessage());
+      }
+   }//end
+
+   public static void BulkMenuImport(Cafe esql){
+      esql.priority(AdmissionControl.Priority.MANAGEMENT);
+      try {
+         System.out.println("Please enter the path of the menu file: ");
+         String path = in.readLine().trim();
+         if (path.isEmpty())
+            return;
+         MenuImport plan = MenuImport.plan(esql, new File(path));
+         plan.print();
+         if (plan.changes() == 0) {
+            System.out.println("Menu is up to date.");
+            return;
+         }
+         System.out.println("Apply " + plan.changes() + " changes? (y/n): ");
+         if (!in.readLine().trim().equalsIgnoreCase("y")) {
+            System.out.println("Menu import cancelled.");
+            return;
+         }
+         esql.executeMenuBatch(plan.statements());
+         System.out.println("Menu imported successfully.");
+      }
+      catch (Exception except) {
+         System.err.println (except.getMessage());
+      }
+   }//end
+
+   public static void ViewAdmissionMetrics(Cafe esql){
+      esql.admission().printMetrics();
+   }//end
+
    public static void ViewUserInfo(Cafe esql, String authorisedUser){
+       esql.priority(AdmissionControl.Priority.BROWSE);
        try {
-          String query = String.format("SELECT U.login, U.phoneNum, U.favItems, U.type FROM Users U WHERE U.login = '%s'", authorisedUser);
-          esql.executeQueryAndPrintResult(query);
+          String query = String.format(USER_INFO_QUERY, authorisedUser);
+          esql.executeReadQueryAndPrintResult(query);
        }
        catch (Exception except) {
           System.err.println(except.getMessage());
@@ -892,9 +1613,10 @@ public class Cafe {
    }
 
    public static void BrowseMenu(Cafe esql){
+       esql.priority(AdmissionControl.Priority.BROWSE);
        try {
-          String query = String.format("SELECT * FROM Menu");
-          esql.executeQueryAndPrintResult(query);
+          String query = MENU_QUERY;
+          esql.executeReadQueryAndPrintResult(query);
        }
        catch (Exception except) {
           System.err.println(except.getMessage());
@@ -0,0 +1,402 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * This class is an append-only log of every Orders and ItemStatus change
+ * made through Cafe.  Consumers such as kitchen displays read it with a
+ * Reader instead of polling the database.
+ *
+ * The log is a directory of memory-mapped segment files, each named after
+ * the sequence number of its first record.  Records have the fixed layout
+ * below.  The sequence number is written last with a release store and read
+ * with an acquire load, so a reader that sees it also sees the rest of the
+ * record, and a record whose sequence number is still zero has not been
+ * committed yet.
+ *
+ *    0  long   sequence number, starting at 1
+ *    8  long   time of the change, milliseconds since the epoch
+ *   16  byte   table, TABLE_ORDERS or TABLE_ITEM_STATUS
+ *   17  byte   operation, OP_INSERT or OP_UPDATE
+ *   20  int    orderid
+ *   24  float  total, NaN when unchanged
+ *   28  byte   paid, 1 or 0, -1 when unchanged
+ *   32  50     itemName, UTF-8 padded with zeros
+ *   82  20     status
+ *  102  50     login
+ *  152  130    comments
+ *
+ * Several terminals may append to the same directory; appends are
+ * serialised with a lock file.  The log is enabled with
+ * -Dcafe.changelog.dir and the segment size is -Dcafe.changelog.segment.bytes.
+ *
+ */
+public class ChangeLog {
+
+   public static final int RECORD_SIZE = 288;
+   public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+   public static final byte TABLE_ORDERS = 1;
+   public static final byte TABLE_ITEM_STATUS = 2;
+   public static final byte OP_INSERT = 1;
+   public static final byte OP_UPDATE = 2;
+
+   private static final int SEQ = 0, TIME = 8, TABLE = 16, OP = 17, ORDERID = 20,
+                            TOTAL = 24, PAID = 28, ITEM = 32, STATUS = 82, LOGIN = 102,
+                            COMMENTS = 152;
+   private static final int ITEM_LEN = 50, STATUS_LEN = 20, LOGIN_LEN = 50, COMMENTS_LEN = 130;
+
+   private static final String SUFFIX = ".seg";
+
+   // ordered access to the sequence numbers, records are 8 byte aligned in the page aligned mapping
+   private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+   /**
+    * One change read back from the log
+    */
+   public static class Record {
+      public final long sequence;
+      public final long timestamp;
+      public final byte table;
+      public final byte operation;
+      public final int orderid;
+      public final float total;
+      public final byte paid;
+      public final String itemName;
+      public final String status;
+      public final String login;
+      public final String comments;
+
+      Record (MappedByteBuffer buf, int pos) {
+         this.sequence = buf.getLong(pos + SEQ);
+         this.timestamp = buf.getLong(pos + TIME);
+         this.table = buf.get(pos + TABLE);
+         this.operation = buf.get(pos + OP);
+         this.orderid = buf.getInt(pos + ORDERID);
+         this.total = buf.getFloat(pos + TOTAL);
+         this.paid = buf.get(pos + PAID);
+         this.itemName = getString(buf, pos + ITEM, ITEM_LEN);
+         this.status = getString(buf, pos + STATUS, STATUS_LEN);
+         this.login = getString(buf, pos + LOGIN, LOGIN_LEN);
+         this.comments = getString(buf, pos + COMMENTS, COMMENTS_LEN);
+      }//end Record
+
+      @Override
+      public String toString () {
+         return this.sequence + "\t" + this.timestamp + "\t" +
+                (this.table == TABLE_ORDERS ? "Orders" : "ItemStatus") + "\t" +
+                (this.operation == OP_INSERT ? "INSERT" : "UPDATE") + "\t" +
+                this.orderid + "\t" + this.itemName + "\t" + this.status + "\t" +
+                this.paid + "\t" + this.total + "\t" + this.login + "\t" + this.comments;
+      }
+   }//end Record
+
+   private final File _dir;
+   private final long _segmentBytes;
+   private final int _recordsPerSegment;
+
+   // serialises appends between terminals sharing the directory
+   private final FileChannel _lockChannel;
+
+   // segment being appended to
+   private long _segmentFirst;
+   private FileChannel _channel;
+   private MappedByteBuffer _buffer;
+   private long _nextSequence;
+
+   /**
+    * Opens the log in the given directory, creating it when missing
+    *
+    * @param dir the log directory
+    * @param segmentBytes the size of every segment file
+    * @throws java.io.IOException when failed to open the log.
+    */
+   public ChangeLog (File dir, long segmentBytes) throws IOException {
+      this._dir = dir;
+      this._recordsPerSegment = (int) Math.min(Integer.MAX_VALUE / RECORD_SIZE, Math.max(1, segmentBytes / RECORD_SIZE));
+      this._segmentBytes = (long) this._recordsPerSegment * RECORD_SIZE;
+      dir.mkdirs();
+      this._lockChannel = FileChannel.open(new File(dir, "append.lock").toPath(),
+                                           StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      FileLock lock = this._lockChannel.lock();
+      try {
+         long[] segments = segments(dir);
+         openSegment(segments.length == 0 ? 1 : segments[segments.length - 1]);
+      }finally {
+         lock.release();
+      }
+      this._nextSequence = this._segmentFirst;
+   }//end ChangeLog
+
+   /**
+    * Opens the log configured by the cafe.changelog.* system properties
+    *
+    * @return the log, or null when it is not enabled
+    * @throws java.io.IOException when failed to open the log.
+    */
+   public static ChangeLog fromSystemProperties () throws IOException {
+      String dir = System.getProperty("cafe.changelog.dir");
+      if (dir == null || dir.trim().isEmpty())
+         return null;
+      return new ChangeLog(new File(dir), Long.getLong("cafe.changelog.segment.bytes", DEFAULT_SEGMENT_BYTES));
+   }//end fromSystemProperties
+
+   /**
+    * Appends a change of an Orders row
+    *
+    * @param op OP_INSERT or OP_UPDATE
+    * @param orderid the order id
+    * @param login the login of the order, null when unchanged
+    * @param paid 1 or 0, -1 when unchanged
+    * @param total the order total, NaN when unchanged
+    * @return the sequence number of the record
+    * @throws java.io.IOException when failed to write the log.
+    */
+   public long appendOrder (byte op, int orderid, String login, int paid, float total) throws IOException {
+      return append(TABLE_ORDERS, op, orderid, null, null, login, null, paid, total);
+   }
+
+   /**
+    * Appends a change of an ItemStatus row
+    *
+    * @param op OP_INSERT or OP_UPDATE
+    * @param orderid the order id
+    * @param itemName the item name
+    * @param status the new status, null when unchanged
+    * @param comments the new comments, null when unchanged
+    * @return the sequence number of the record
+    * @throws java.io.IOException when failed to write the log.
+    */
+   public long appendItem (byte op, int orderid, String itemName, String status, String comments) throws IOException {
+      return append(TABLE_ITEM_STATUS, op, orderid, itemName, status, null, comments, -1, Float.NaN);
+   }
+
+   private synchronized long append (byte table, byte op, int orderid, String itemName, String status,
+                                     String login, String comments, int paid, float total) throws IOException {
+      FileLock lock = this._lockChannel.lock();
+      try {
+         // skip the records other terminals appended since our last write
+         while (true) {
+            if (this._nextSequence - this._segmentFirst >= this._recordsPerSegment) {
+               this._buffer.force();
+               openSegment(this._segmentFirst + this._recordsPerSegment);
+            }
+            if ((long) LONGS.getAcquire(this._buffer, position(this._nextSequence) + SEQ) == 0)
+               break;
+            this._nextSequence++;
+         }//end while
+
+         long seq = this._nextSequence++;
+         int pos = position(seq);
+         this._buffer.putLong(pos + TIME, System.currentTimeMillis());
+         this._buffer.put(pos + TABLE, table);
+         this._buffer.put(pos + OP, op);
+         this._buffer.putInt(pos + ORDERID, orderid);
+         this._buffer.putFloat(pos + TOTAL, total);
+         this._buffer.put(pos + PAID, (byte) paid);
+         putString(this._buffer, pos + ITEM, ITEM_LEN, itemName);
+         putString(this._buffer, pos + STATUS, STATUS_LEN, status);
+         putString(this._buffer, pos + LOGIN, LOGIN_LEN, login);
+         putString(this._buffer, pos + COMMENTS, COMMENTS_LEN, comments);
+         // commit the record, the fields above become visible first
+         LONGS.setRelease(this._buffer, pos + SEQ, seq);
+         return seq;
+      }finally {
+         lock.release();
+      }//end try
+   }//end append
+
+   /**
+    * Flushes and closes the current segment.
+    */
+   public synchronized void close () {
+      try {
+         this._buffer.force();
+         this._channel.close();
+         this._lockChannel.close();
+      }catch (IOException e) {
+         // ignored.
+      }
+   }//end close
+
+   private int position (long seq) {
+      return (int) (seq - this._segmentFirst) * RECORD_SIZE;
+   }
+
+   private void openSegment (long first) throws IOException {
+      if (this._channel != null)
+         this._channel.close();
+      this._segmentFirst = first;
+      this._channel = FileChannel.open(segmentFile(this._dir, first).toPath(), StandardOpenOption.CREATE,
+                                       StandardOpenOption.READ, StandardOpenOption.WRITE);
+      // mapping past the end grows the file to the full, zero filled segment
+      this._buffer = this._channel.map(FileChannel.MapMode.READ_WRITE, 0, this._segmentBytes);
+   }//end openSegment
+
+   /**
+    * Reads the log from a given sequence number on, following new records
+    * as they are appended.  A reader is used by one thread.
+    */
+   public static class Reader implements AutoCloseable {
+      private final File _dir;
+      private long _segmentFirst = -1;
+      private long _segmentRecords;
+      private FileChannel _channel;
+      private MappedByteBuffer _buffer;
+      private long _nextSequence;
+
+      /**
+       * @param dir the log directory
+       * @param fromSequence the first sequence number to return, 1 for the whole log
+       */
+      public Reader (File dir, long fromSequence) {
+         this._dir = dir;
+         this._nextSequence = Math.max(1, fromSequence);
+      }
+
+      /**
+       * @return the sequence number poll will return next
+       */
+      public long nextSequence () {
+         return this._nextSequence;
+      }
+
+      /**
+       * Returns the next committed record without waiting
+       *
+       * @return the next record, or null when the reader is at the end of the log
+       * @throws java.io.IOException when failed to read the log.
+       */
+      public Record poll () throws IOException {
+         if (this._buffer == null || this._nextSequence - this._segmentFirst >= this._segmentRecords) {
+            if (!openSegmentFor(this._nextSequence))
+               return null;
+         }
+         int pos = (int) (this._nextSequence - this._segmentFirst) * RECORD_SIZE;
+         if ((long) LONGS.getAcquire(this._buffer, pos + SEQ) == 0)
+            return null;
+         this._nextSequence++;
+         return new Record(this._buffer, pos);
+      }//end poll
+
+      /**
+       * Waits for the next committed record
+       *
+       * @param pollMillis how long to sleep between checks
+       * @return the next record
+       * @throws java.io.IOException when failed to read the log.
+       * @throws java.lang.InterruptedException when interrupted while waiting.
+       */
+      public Record take (long pollMillis) throws IOException, InterruptedException {
+         Record record;
+         while ((record = poll()) == null)
+            Thread.sleep(pollMillis);
+         return record;
+      }//end take
+
+      @Override
+      public void close () throws IOException {
+         if (this._channel != null)
+            this._channel.close();
+      }
+
+      private boolean openSegmentFor (long seq) throws IOException {
+         long first = -1;
+         for (long segment : segments(this._dir)) {
+            if (segment <= seq)
+               first = segment;
+         }
+         if (first < 0)
+            return false;
+         if (first != this._segmentFirst) {
+            close();
+            this._channel = FileChannel.open(segmentFile(this._dir, first).toPath(), StandardOpenOption.READ);
+            this._segmentFirst = first;
+            this._segmentRecords = 0;
+         }
+         // a segment opened before the writer mapped it is short, remap it once it grew
+         long records = this._channel.size() / RECORD_SIZE;
+         if (records > this._segmentRecords) {
+            this._segmentRecords = records;
+            this._buffer = this._channel.map(FileChannel.MapMode.READ_ONLY, 0, records * RECORD_SIZE);
+         }
+         return seq - first < this._segmentRecords;
+      }//end openSegmentFor
+   }//end Reader
+
+   /**
+    * Prints the log to standard out, following it when -f is given
+    *
+    * @param args the command line arguments <log dir> [from sequence] [-f]
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 1) {
+         System.err.println("Usage: java " + ChangeLog.class.getName() + " <log dir> [from sequence] [-f]");
+         return;
+      }
+      long from = (args.length > 1 && !args[1].equals("-f")) ? Long.parseLong(args[1]) : 1;
+      boolean follow = args[args.length - 1].equals("-f");
+      try (Reader reader = new Reader(new File(args[0]), from)) {
+         while (true) {
+            Record record = follow ? reader.take(100) : reader.poll();
+            if (record == null)
+               break;
+            System.out.println(record);
+         }
+      }
+   }//end main
+
+   private static long[] segments (File dir) {
+      String[] names = dir.list((d, name) -> name.endsWith(SUFFIX));
+      if (names == null)
+         return new long[0];
+      long[] firsts = new long[names.length];
+      for (int i = 0; i < names.length; i++)
+         firsts[i] = Long.parseLong(names[i].substring(0, names[i].length() - SUFFIX.length()));
+      Arrays.sort(firsts);
+      return firsts;
+   }//end segments
+
+   private static File segmentFile (File dir, long first) {
+      return new File(dir, String.format("%020d%s", first, SUFFIX));
+   }
+
+   private static void putString (MappedByteBuffer buf, int pos, int len, String value) {
+      byte[] bytes = (value == null) ? new byte[0] : value.trim().getBytes(StandardCharsets.UTF_8);
+      int n = Math.min(bytes.length, len);
+      for (int i = 0; i < len; i++)
+         buf.put(pos + i, i < n ? bytes[i] : 0);
+   }//end putString
+
+   private static String getString (MappedByteBuffer buf, int pos, int len) {
+      byte[] bytes = new byte[len];
+      int n = 0;
+      while (n < len && buf.get(pos + n) != 0) {
+         bytes[n] = buf.get(pos + n);
+         n++;
+      }
+      return new String(bytes, 0, n, StandardCharsets.UTF_8);
+   }//end getString
+
+}//end ChangeLog
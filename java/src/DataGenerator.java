@@ -0,0 +1,435 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * This class generates Users, Menu, Orders and ItemStatus data in the
+ * semicolon delimited format read by load_data.sql.
+ *
+ * The output only depends on the options, so the same seed always produces
+ * the same files.  Rows are written as they are generated and nothing is
+ * kept per user or per order, so memory stays flat at any scale.
+ *
+ * Usage: java DataGenerator <output dir> [--users=N] [--orders=N]
+ *        [--menu=N] [--days=N] [--seed=N] [--end=yyyy-MM-dd|now]
+ *
+ */
+public class DataGenerator {
+
+   private static final DateTimeFormatter TIMESTAMP =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+   // the original menu, used first so existing item names stay valid
+   private static final String[][] BASE_MENU = {
+      { "Coffee", "Drinks", "1.99", "Americano,Cappuccino,Latte" },
+      { "7up", "Drinks", "1.99", "" },
+      { "Pepsi", "Drinks", "1.99", "" },
+      { "Lemonade", "Drinks", "1.50", "" },
+      { "Brisk", "Drinks", "1.20", "" },
+      { "Orange Juice", "Drinks", "1.30", "" },
+      { "Donuts", "Sweets", "0.99", "Fritters,Long Johns,Crullers,Old Fashioned,Bear Claws" },
+      { "Pudding", "Sweets", "1.99", "Regular,Cholocate Fudge,Banana" },
+      { "Ice Cream", "Sweets", "2.99", "Chocolate,Vanilla" },
+      { "Hot and Sour Soup", "Soup", "5.20", "" },
+      { "Vegatable Noodle Soup", "Soup", "5.20", "" },
+      { "Egg Flower Soup", "Soup", "5.20", "" },
+      { "Chicken Noodle Soup", "Soup", "5.20", "" }
+   };
+
+   private static final String[] FLAVOURS = {
+      "Iced", "Hot", "Spicy", "Vanilla", "Mocha", "Honey", "Matcha", "Caramel",
+      "Berry", "Lemon", "Ginger", "Maple", "Coconut", "Almond", "Cinnamon"
+   };
+   private static final String[][] BASES = {
+      { "Drinks", "Latte", "Tea", "Smoothie", "Soda", "Milkshake" },
+      { "Sweets", "Muffin", "Cookie", "Scone", "Croissant", "Brownie" },
+      { "Soup", "Ramen", "Chowder", "Bisque", "Stew", "Broth" }
+   };
+
+   private static final String[] FIRST_NAMES = {
+      "Amy", "Bob", "Maci", "Katelynn", "Demarcus", "Rhea", "Hester", "Emma",
+      "Natalie", "Marshall", "Liam", "Olivia", "Noah", "Ava", "Mason", "Sophia",
+      "Lucas", "Mia", "Ethan", "Harper", "Logan", "Ella", "Jacob", "Aria"
+   };
+   private static final String[] LAST_NAMES = {
+      "Powlowski", "Goyette", "Jenkins", "Braun", "Johns", "Smith", "Nguyen",
+      "Garcia", "Kim", "Patel", "Lopez", "Chen", "Walker", "Young", "Hill"
+   };
+   private static final String[] COMMENTS = {
+      "No sugar", "Extra hot", "No ice", "To go", "Oat milk", "Light ice",
+      "Extra napkins", "Less salt", "Add whipped cream", "Split in two"
+   };
+
+   // relative arrival rate per hour of day, the cafe opens at 6 and closes at 22
+   private static final double[] HOURLY_RATE = {
+      0, 0, 0, 0, 0, 0, 2, 7, 10, 8, 5, 7, 10, 9, 5, 4, 5, 4, 3, 3, 2, 1, 0, 0
+   };
+
+   // relative arrival rate per day of week, Monday first
+   private static final double[] DAILY_RATE = { 1.0, 1.0, 1.0, 1.05, 1.15, 1.3, 1.1 };
+
+   private final int _users;
+   private final long _orders;
+   private final int _menuItems;
+   private final int _days;
+   private final long _seed;
+   private final LocalDateTime _end;
+
+   // cumulative arrival rate for every minute of the covered period
+   private double[] _arrivalCdf;
+   private LocalDateTime _start;
+
+   // menu kept in memory, it is small and needed to price every order
+   private String[] _itemNames;
+   private double[] _itemPrices;
+
+   public DataGenerator (int users, long orders, int menuItems, int days, long seed, LocalDateTime end) {
+      this._users = users;
+      this._orders = orders;
+      this._menuItems = menuItems;
+      this._days = days;
+      this._seed = seed;
+      this._end = end;
+   }//end DataGenerator
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments, see the class comment
+    */
+   public static void main (String[] args) {
+      if (args.length < 1) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            DataGenerator.class.getName () +
+            " <output dir> [--users=N] [--orders=N] [--menu=N] [--days=N] [--seed=N] [--end=yyyy-MM-dd|now]");
+         return;
+      }//end if
+
+      int users = 28000;
+      long orders = 100000;
+      int menu = BASE_MENU.length;
+      int days = 30;
+      long seed = 42;
+      LocalDateTime end = LocalDate.of(2024, 1, 1).atStartOfDay();
+      try {
+         for (int i = 1; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            switch (option[0]) {
+               case "--users": users = Integer.parseInt(option[1]); break;
+               case "--orders": orders = Long.parseLong(option[1]); break;
+               case "--menu": menu = Integer.parseInt(option[1]); break;
+               case "--days": days = Integer.parseInt(option[1]); break;
+               case "--seed": seed = Long.parseLong(option[1]); break;
+               case "--end":
+                  end = option[1].equals("now")
+                     ? LocalDateTime.now().withNano(0)
+                     : LocalDate.parse(option[1]).atStartOfDay();
+                  break;
+               default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }//end switch
+         }//end for
+         if (users < 1 || menu < 1 || days < 1 || orders < 0)
+            throw new IllegalArgumentException("Sizes must be positive");
+
+         File dir = new File(args[0]);
+         dir.mkdirs();
+         DataGenerator gen = new DataGenerator(users, orders, menu, days, seed, end);
+         gen.writeMenu(new File(dir, "menu.csv"));
+         gen.writeUsers(new File(dir, "users.csv"));
+         gen.writeOrders(new File(dir, "orders.csv"), new File(dir, "itemStatus.csv"));
+         System.out.println("Done. Restart orders_orderid_seq at " + (orders + 1));
+      }catch (Exception e) {
+         System.err.println (e.getMessage ());
+         System.exit(-1);
+      }//end try
+   }//end main
+
+   /*
+    * Writes the menu, the original items first and generated items after
+    **/
+   public void writeMenu (File file) throws IOException {
+      SplittableRandom rand = new SplittableRandom(this._seed);
+      this._itemNames = new String[this._menuItems];
+      this._itemPrices = new double[this._menuItems];
+
+      try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+         for (int i = 0; i < this._menuItems; i++) {
+            String name, type, description;
+            double price;
+            if (i < BASE_MENU.length) {
+               name = BASE_MENU[i][0];
+               type = BASE_MENU[i][1];
+               price = Double.parseDouble(BASE_MENU[i][2]);
+               description = BASE_MENU[i][3];
+            }
+            else {
+               int j = i - BASE_MENU.length;
+               String[] base = BASES[j % BASES.length];
+               int combo = j / BASES.length;
+               name = FLAVOURS[combo % FLAVOURS.length] + " " + base[1 + (combo / FLAVOURS.length) % (base.length - 1)];
+               // numbered once every flavour and base has been used
+               int round = combo / (FLAVOURS.length * (base.length - 1));
+               if (round > 0)
+                  name += " " + (round + 1);
+               type = base[0];
+               price = Math.round((1 + rand.nextDouble() * 6) * 100) / 100.0;
+               description = "";
+            }
+            this._itemNames[i] = name;
+            this._itemPrices[i] = price;
+            out.write(name + ";" + type + ";" + String.format("%.2f", price) + ";" + description +
+                      ";https://1ty.me/item" + i);
+            out.newLine();
+         }//end for
+      }//end try
+   }//end writeMenu
+
+   /*
+    * Writes the users, one Manager and a few Employees first
+    **/
+   public void writeUsers (File file) throws IOException {
+      SplittableRandom rand = new SplittableRandom(this._seed + 1);
+      int employees = 3 + this._users / 10000;
+
+      try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+         for (int i = 0; i < this._users; i++) {
+            String type = (i == 0) ? "Manager" : (i <= employees) ? "Employee" : "Customer";
+            StringBuilder favItems = new StringBuilder();
+            int favCount = rand.nextInt(4);
+            for (int f = 0; f < favCount && f < this._itemNames.length; f++) {
+               if (f > 0)
+                  favItems.append(',');
+               favItems.append(this._itemNames[f]);
+            }
+            out.write(login(i) + ";" + phone(i) + ";" + Long.toHexString(rand.nextLong()) + ";" +
+                      favItems + ";" + type);
+            out.newLine();
+         }//end for
+      }//end try
+   }//end writeUsers
+
+   /*
+    * Writes the orders and their items in order id and time order
+    **/
+   public void writeOrders (File ordersFile, File itemsFile) throws IOException {
+      SplittableRandom rand = new SplittableRandom(this._seed + 2);
+      ZipfSampler items = new ZipfSampler(this._menuItems, 1.1);
+      ZipfSampler customers = new ZipfSampler(this._users, 0.6);
+      buildArrivalCdf();
+
+      // popularity rank to menu item, so the best sellers are not always the first rows
+      int[] itemByRank = shuffledIndexes(this._menuItems, rand);
+      int[] picked = new int[Math.min(this._menuItems, 8)];
+      LocalDateTime paidBefore = this._end.minusHours(24);
+
+      try (BufferedWriter orders = new BufferedWriter(new FileWriter(ordersFile), 1 << 16);
+           BufferedWriter status = new BufferedWriter(new FileWriter(itemsFile), 1 << 16)) {
+         // ascending uniform order statistics, so ids and timestamps grow together
+         double u = 0;
+         for (long n = 0; n < this._orders; n++) {
+            u += (1 - u) * (1 - Math.pow(rand.nextDouble(), 1.0 / (this._orders - n)));
+            LocalDateTime received = arrivalTime(u);
+            long orderid = n + 1;
+            // the most frequent customers are the last rows, away from the staff
+            String login = login(this._users - customers.sample(rand));
+
+            // 1 to 8 distinct items, geometric with a mean of about two
+            int count = 1;
+            while (count < picked.length && rand.nextDouble() < 0.5)
+               count++;
+            double total = 0;
+            for (int k = 0; k < count; k++) {
+               int item;
+               boolean repeat;
+               do {
+                  item = itemByRank[items.sample(rand) - 1];
+                  repeat = false;
+                  for (int p = 0; p < k; p++)
+                     repeat |= picked[p] == item;
+               } while (repeat);
+               picked[k] = item;
+               total += this._itemPrices[item];
+            }//end for
+
+            boolean old = received.isBefore(paidBefore);
+            boolean paid = old ? rand.nextDouble() < 0.98 : rand.nextDouble() < 0.5;
+            orders.write(orderid + ";" + login + ";" + paid + ";" + TIMESTAMP.format(received) + ";" +
+                         String.format("%.2f", total));
+            orders.newLine();
+
+            long ageMinutes = Duration.between(received, this._end).toMinutes();
+            for (int k = 0; k < count; k++) {
+               int prepMinutes = 2 + rand.nextInt(12);
+               String state;
+               LocalDateTime updated;
+               if (ageMinutes >= prepMinutes) {
+                  state = "Finished";
+                  updated = received.plusMinutes(prepMinutes);
+               }
+               else if (ageMinutes >= prepMinutes / 2) {
+                  state = "Started";
+                  updated = received.plusMinutes(prepMinutes / 2);
+               }
+               else {
+                  state = "Hasn't Started";
+                  updated = received;
+               }
+               String comment = rand.nextDouble() < 0.15 ? COMMENTS[rand.nextInt(COMMENTS.length)] : "";
+               status.write(orderid + ";" + this._itemNames[picked[k]] + ";" + TIMESTAMP.format(updated) + ";" +
+                            state + ";" + comment);
+               status.newLine();
+            }//end for
+         }//end for
+      }//end try
+   }//end writeOrders
+
+   /*
+    * Login of the i-th user, unique and computed rather than stored
+    **/
+   private static String login(int i) {
+      if (i == 0)
+         return "Admin";
+      int h = mix(i);
+      String first = FIRST_NAMES[Math.floorMod(h, FIRST_NAMES.length)];
+      String last = LAST_NAMES[Math.floorMod(h >>> 8, LAST_NAMES.length)];
+      return first + ((h & 0x10000) == 0 ? "_" : ".") + last + i;
+   }//end login
+
+   /*
+    * Phone number of the i-th user, unique for up to 8 billion users
+    **/
+   private static String phone(int i) {
+      long n = (long) i;
+      return String.format("+1(%03d)%03d-%04d", 200 + n / 10000000L, (n / 10000) % 1000, n % 10000);
+   }//end phone
+
+   private static int mix(int x) {
+      x = (x ^ (x >>> 16)) * 0x45d9f3b;
+      x = (x ^ (x >>> 16)) * 0x45d9f3b;
+      return x ^ (x >>> 16);
+   }//end mix
+
+   private static int[] shuffledIndexes(int n, SplittableRandom rand) {
+      int[] index = new int[n];
+      for (int i = 0; i < n; i++)
+         index[i] = i;
+      for (int i = n - 1; i > 0; i--) {
+         int j = rand.nextInt(i + 1);
+         int t = index[i];
+         index[i] = index[j];
+         index[j] = t;
+      }
+      return index;
+   }//end shuffledIndexes
+
+   /*
+    * Builds the cumulative arrival rate of every minute between start and end
+    **/
+   private void buildArrivalCdf() {
+      this._start = this._end.minusDays(this._days);
+      this._arrivalCdf = new double[this._days * 24 * 60];
+      double sum = 0;
+      for (int m = 0; m < this._arrivalCdf.length; m++) {
+         LocalDateTime t = this._start.plusMinutes(m);
+         sum += HOURLY_RATE[t.getHour()] * DAILY_RATE[t.getDayOfWeek().getValue() - 1];
+         this._arrivalCdf[m] = sum;
+      }
+      for (int m = 0; m < this._arrivalCdf.length; m++)
+         this._arrivalCdf[m] /= sum;
+   }//end buildArrivalCdf
+
+   /*
+    * Maps a uniform value in [0, 1) to a time with the arrival curve's density
+    **/
+   private LocalDateTime arrivalTime(double u) {
+      int m = Arrays.binarySearch(this._arrivalCdf, u);
+      if (m < 0)
+         m = -m - 1;
+      m = Math.min(m, this._arrivalCdf.length - 1);
+      double lo = (m == 0) ? 0 : this._arrivalCdf[m - 1];
+      double width = this._arrivalCdf[m] - lo;
+      long seconds = (width > 0) ? (long) ((u - lo) / width * 60) : 0;
+      return this._start.plusMinutes(m).plusSeconds(Math.min(seconds, 59));
+   }//end arrivalTime
+
+   /**
+    * Samples ranks 1..n with probability proportional to 1 / rank^exponent
+    * using rejection-inversion, so no per-rank table is needed.
+    */
+   static class ZipfSampler {
+      private final int _n;
+      private final double _exponent;
+      private final double _hIntegralX1;
+      private final double _hIntegralN;
+      private final double _s;
+
+      ZipfSampler (int n, double exponent) {
+         this._n = n;
+         this._exponent = exponent;
+         this._hIntegralX1 = hIntegral(1.5) - 1;
+         this._hIntegralN = hIntegral(n + 0.5);
+         this._s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+      }
+
+      int sample (SplittableRandom rand) {
+         while (true) {
+            double u = this._hIntegralN + rand.nextDouble() * (this._hIntegralX1 - this._hIntegralN);
+            double x = hIntegralInverse(u);
+            int k = (int) (x + 0.5);
+            if (k < 1)
+               k = 1;
+            else if (k > this._n)
+               k = this._n;
+            if (k - x <= this._s || u >= hIntegral(k + 0.5) - h(k))
+               return k;
+         }
+      }//end sample
+
+      private double hIntegral (double x) {
+         double logX = Math.log(x);
+         return helper2((1 - this._exponent) * logX) * logX;
+      }
+
+      private double h (double x) {
+         return Math.exp(-this._exponent * Math.log(x));
+      }
+
+      private double hIntegralInverse (double x) {
+         double t = x * (1 - this._exponent);
+         if (t < -1)
+            t = -1;
+         return Math.exp(helper1(t) * x);
+      }
+
+      private static double helper1 (double x) {
+         return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+      }
+
+      private static double helper2 (double x) {
+         return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x * (1.0 / 3) * (1 + 0.25 * x));
+      }
+   }//end ZipfSampler
+
+}//end DataGenerator
@@ -0,0 +1,307 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * This class keeps the open ItemStatus rows in memory and groups identical
+ * Menu items across orders into prep batches, so the kitchen can make and
+ * update several orders' items in one go.
+ *
+ * Rows that have not started are indexed by item name, oldest order first,
+ * and cut into batches of at most -Dcafe.kitchen.batch.size items.  Started
+ * rows form one batch per item.  Batches are listed most urgent first,
+ * urgency being the age of the oldest order over the SLA target set with
+ * -Dcafe.kitchen.sla.minutes.
+ *
+ * Changes made through this terminal are applied as they happen.  Changes
+ * made by other terminals are read from the change log when it is enabled,
+ * and otherwise picked up by reloading every -Dcafe.kitchen.refresh.ms.
+ *
+ */
+public class KitchenScheduler {
+
+   public static final String NOT_STARTED = "Hasn't Started";
+   public static final String STARTED = "Started";
+   public static final String FINISHED = "Finished";
+
+   public static final int DEFAULT_BATCH_SIZE = 8;
+   public static final int DEFAULT_SLA_MINUTES = 10;
+   public static final long DEFAULT_REFRESH_MS = 15000;
+
+   // served by the itemstatus_open partial index of create_indexes.sql
+   static final String LOAD_QUERY =
+      "SELECT I.orderid, I.itemName, I.status, O.timeStampRecieved FROM ItemStatus I, Orders O " +
+      "WHERE I.orderid = O.orderid AND I.status IN ('Hasn''t Started', 'Started')";
+
+   /**
+    * One open ItemStatus row
+    */
+   public static class Ticket {
+      public final int orderid;
+      public final String itemName;
+      public final long received;
+
+      Ticket (int orderid, String itemName, long received) {
+         this.orderid = orderid;
+         this.itemName = itemName;
+         this.received = received;
+      }
+   }//end Ticket
+
+   /**
+    * Items of the same Menu item from several orders, prepared together
+    */
+   public static class Batch {
+      public final String itemName;
+      public final String status;
+      public final List<Ticket> tickets;
+
+      Batch (String itemName, String status, List<Ticket> tickets) {
+         this.itemName = itemName;
+         this.status = status;
+         this.tickets = tickets;
+      }
+
+      /**
+       * @return the time the oldest order of the batch was received
+       */
+      public long oldest () {
+         return this.tickets.get(0).received;
+      }
+
+      /**
+       * @return the ids of the batch's orders
+       */
+      public List<Integer> orderids () {
+         List<Integer> ids = new ArrayList<Integer>(this.tickets.size());
+         for (Ticket ticket : this.tickets)
+            ids.add(ticket.orderid);
+         return ids;
+      }
+   }//end Batch
+
+   private static final Comparator<Ticket> OLDEST_FIRST =
+      Comparator.<Ticket>comparingLong(t -> t.received).thenComparingInt(t -> t.orderid);
+
+   private final int _batchSize;
+   private final long _slaMillis;
+   private final long _refreshMillis;
+
+   // open rows by item name and status, and by orderid and item name
+   private final Map<String, TreeSet<Ticket>> _pending = new HashMap<String, TreeSet<Ticket>>();
+   private final Map<String, TreeSet<Ticket>> _started = new HashMap<String, TreeSet<Ticket>>();
+   private final Map<String, Ticket> _byKey = new HashMap<String, Ticket>();
+
+   // follows the changes of other terminals, null without a change log
+   private ChangeLog.Reader _reader = null;
+   private File _logDir = null;
+   private long _loaded;
+
+   /**
+    * Creates an empty scheduler, call reload to fill it
+    *
+    * @param batchSize the most items in a batch
+    * @param slaMinutes the target time from order to start
+    * @param refreshMillis the time between reloads without a change log
+    * @param logDir the change log directory, or null when disabled
+    */
+   public KitchenScheduler (int batchSize, int slaMinutes, long refreshMillis, File logDir) {
+      this._batchSize = Math.max(1, batchSize);
+      this._slaMillis = Math.max(1, slaMinutes) * 60000L;
+      this._refreshMillis = refreshMillis;
+      this._logDir = logDir;
+   }//end KitchenScheduler
+
+   /**
+    * Creates a scheduler configured from the cafe.kitchen.* system properties
+    *
+    * @return the configured scheduler
+    */
+   public static KitchenScheduler fromSystemProperties () {
+      String logDir = System.getProperty("cafe.changelog.dir");
+      return new KitchenScheduler(Integer.getInteger("cafe.kitchen.batch.size", DEFAULT_BATCH_SIZE),
+                                  Integer.getInteger("cafe.kitchen.sla.minutes", DEFAULT_SLA_MINUTES),
+                                  Long.getLong("cafe.kitchen.refresh.ms", DEFAULT_REFRESH_MS),
+                                  (logDir == null || logDir.trim().isEmpty()) ? null : new File(logDir));
+   }//end fromSystemProperties
+
+   /**
+    * Reloads every open ItemStatus row from the database
+    *
+    * @param esql the database to load from
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public synchronized void reload (Cafe esql) throws SQLException {
+      // skip the log up to now, the query below already contains those changes
+      if (this._logDir != null) {
+         try {
+            if (this._reader == null)
+               this._reader = new ChangeLog.Reader(this._logDir, 1);
+            while (this._reader.poll() != null)
+               ;
+         }catch (IOException e) {
+            System.err.println("Unable to read change log: " + e.getMessage());
+            this._reader = null;
+         }
+      }
+
+      List<List<String>> rows = esql.executeFanOutQueryAndReturnResult(LOAD_QUERY);
+      this._pending.clear();
+      this._started.clear();
+      this._byKey.clear();
+      for (List<String> row : rows) {
+         apply(Integer.parseInt(row.get(0).trim()), row.get(1).trim(), row.get(2).trim(),
+               Timestamp.valueOf(row.get(3)).getTime());
+      }
+      this._loaded = System.currentTimeMillis();
+   }//end reload
+
+   /**
+    * Applies the changes made by other terminals since the last call
+    *
+    * @param esql the database to reload from without a change log
+    * @throws java.sql.SQLException when failed to reload
+    */
+   public synchronized void catchUp (Cafe esql) throws SQLException {
+      if (this._reader == null) {
+         if (System.currentTimeMillis() - this._loaded >= this._refreshMillis)
+            reload(esql);
+         return;
+      }
+      try {
+         ChangeLog.Record record;
+         while ((record = this._reader.poll()) != null) {
+            if (record.table == ChangeLog.TABLE_ITEM_STATUS && !record.status.isEmpty())
+               apply(record.orderid, record.itemName, record.status, record.timestamp);
+         }
+      }catch (IOException e) {
+         System.err.println("Unable to read change log: " + e.getMessage());
+         reload(esql);
+      }
+   }//end catchUp
+
+   /**
+    * Records a status change of an ItemStatus row
+    *
+    * @param orderid the order id
+    * @param itemName the item name
+    * @param status the new status
+    * @param received the time the order was received, used for new rows
+    */
+   public synchronized void apply (int orderid, String itemName, String status, long received) {
+      String key = orderid + "|" + itemName;
+      Ticket ticket = this._byKey.remove(key);
+      if (ticket != null) {
+         remove(this._pending, ticket);
+         remove(this._started, ticket);
+      }
+      else {
+         ticket = new Ticket(orderid, itemName, received);
+      }
+
+      Map<String, TreeSet<Ticket>> target;
+      if (NOT_STARTED.equalsIgnoreCase(status))
+         target = this._pending;
+      else if (STARTED.equalsIgnoreCase(status))
+         target = this._started;
+      else
+         return;
+      target.computeIfAbsent(itemName, name -> new TreeSet<Ticket>(OLDEST_FIRST)).add(ticket);
+      this._byKey.put(key, ticket);
+   }//end apply
+
+   /**
+    * @return the current batches, most urgent first
+    */
+   public synchronized List<Batch> batches () {
+      List<Batch> batches = new ArrayList<Batch>();
+      for (Map.Entry<String, TreeSet<Ticket>> entry : this._started.entrySet())
+         batches.add(new Batch(entry.getKey(), STARTED, new ArrayList<Ticket>(entry.getValue())));
+      for (Map.Entry<String, TreeSet<Ticket>> entry : this._pending.entrySet()) {
+         List<Ticket> batch = new ArrayList<Ticket>(this._batchSize);
+         for (Ticket ticket : entry.getValue()) {
+            batch.add(ticket);
+            if (batch.size() == this._batchSize) {
+               batches.add(new Batch(entry.getKey(), NOT_STARTED, batch));
+               batch = new ArrayList<Ticket>(this._batchSize);
+            }
+         }
+         if (!batch.isEmpty())
+            batches.add(new Batch(entry.getKey(), NOT_STARTED, batch));
+      }//end for
+
+      // oldest first is most overdue first, larger batches win ties
+      batches.sort(Comparator.<Batch>comparingLong(b -> b.oldest())
+                             .thenComparing(b -> -b.tickets.size()));
+      return batches;
+   }//end batches
+
+   /**
+    * @param batch a batch
+    * @param now the current time
+    * @return the age of the batch's oldest order as a fraction of the SLA target
+    */
+   public double urgency (Batch batch, long now) {
+      return (double) (now - batch.oldest()) / this._slaMillis;
+   }
+
+   /**
+    * @param status the current status of a batch
+    * @return the status the batch moves to next, or null when it is done
+    */
+   public static String nextStatus (String status) {
+      if (NOT_STARTED.equalsIgnoreCase(status))
+         return STARTED;
+      if (STARTED.equalsIgnoreCase(status))
+         return FINISHED;
+      return null;
+   }//end nextStatus
+
+   /**
+    * Moves every item of a batch still in the batch's status to its next
+    * status with one update per database.  The scheduler is reloaded when
+    * some items were already moved by another terminal.
+    *
+    * @param esql the database to update
+    * @param batch the batch to move
+    * @return the ids of the orders whose item moved
+    * @throws java.sql.SQLException when update failed
+    */
+   public List<Integer> advance (Cafe esql, Batch batch) throws SQLException {
+      String status = nextStatus(batch.status);
+      if (status == null)
+         return new ArrayList<Integer>();
+      // Cafe reports every changed row back through apply
+      List<Integer> changed = esql.executeItemStatusUpdate(batch.itemName, batch.orderids(), batch.status, status);
+      if (changed.size() < batch.tickets.size())
+         reload(esql);
+      return changed;
+   }//end advance
+
+   private static void remove (Map<String, TreeSet<Ticket>> index, Ticket ticket) {
+      TreeSet<Ticket> tickets = index.get(ticket.itemName);
+      if (tickets != null && tickets.remove(ticket) && tickets.isEmpty())
+         index.remove(ticket.itemName);
+   }//end remove
+
+}//end KitchenScheduler
@@ -0,0 +1,269 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class compares a menu file in the data/menu.csv format with the
+ * current Menu and works out the statements that bring Menu in line with
+ * it: inserts for new items, updates for changed ones and deletes for
+ * items no longer on the file.
+ *
+ * Items still referenced by ItemStatus cannot be deleted.  Items with open
+ * orders are kept as they are and reported as refused; items only found in
+ * finished orders are retired by changing their type to 'Retired', which
+ * hides them from the menu screens and the item search and keeps them out
+ * of new orders.  Listing a retired item again brings it back.
+ *
+ * Prices are written into the statements as plain decimals parsed from the
+ * file, never as the file's own text.
+ *
+ * The plan is computed before anything is written, so applying it is one
+ * batched transaction.
+ *
+ */
+public class MenuImport {
+
+   public static final String RETIRED = "Retired";
+
+   static final String MENU_QUERY = "SELECT itemName, type, price, description, imageURL FROM Menu";
+   static final String REFERENCED_QUERY =
+      "SELECT itemName, MAX(CASE WHEN status IN ('Hasn''t Started', 'Started') THEN 1 ELSE 0 END) " +
+      "FROM ItemStatus GROUP BY itemName";
+
+   /**
+    * One Menu row
+    */
+   public static class Item {
+      public final String itemName;
+      public final String type;
+      public final String price;
+      public final String description;
+      public final String imageURL;
+
+      Item (String itemName, String type, String price, String description, String imageURL) {
+         this.itemName = trim(itemName);
+         this.type = trim(type);
+         this.price = trim(price);
+         this.description = trim(description);
+         this.imageURL = trim(imageURL);
+      }
+
+      /**
+       * @param other another version of the item
+       * @return the names of the columns that differ
+       */
+      public List<String> changes (Item other) {
+         List<String> columns = new ArrayList<String>();
+         if (!this.type.equals(other.type))
+            columns.add("type");
+         if (Float.compare(Float.parseFloat(this.price), Float.parseFloat(other.price)) != 0)
+            columns.add("price");
+         if (!this.description.equals(other.description))
+            columns.add("description");
+         if (!this.imageURL.equals(other.imageURL))
+            columns.add("imageURL");
+         return columns;
+      }//end changes
+
+      private static String trim (String value) {
+         return (value == null) ? "" : value.trim();
+      }
+   }//end Item
+
+   private final List<Item> _added = new ArrayList<Item>();
+   private final List<Item> _updated = new ArrayList<Item>();
+   private final List<String> _updatedColumns = new ArrayList<String>();
+   private final List<Item> _retired = new ArrayList<Item>();
+   private final List<Item> _deleted = new ArrayList<Item>();
+   private final List<Item> _refused = new ArrayList<Item>();
+
+   /**
+    * Works out the changes from the current menu to the wanted one
+    *
+    * @param current the current Menu rows by item name
+    * @param wanted the wanted Menu rows by item name
+    * @param open the items with open ItemStatus rows
+    * @param referenced every item with ItemStatus rows
+    */
+   public MenuImport (Map<String, Item> current, Map<String, Item> wanted,
+                      Set<String> open, Set<String> referenced) {
+      for (Item item : wanted.values()) {
+         Item old = current.get(item.itemName);
+         if (old == null) {
+            this._added.add(item);
+            continue;
+         }
+         List<String> columns = old.changes(item);
+         if (!columns.isEmpty()) {
+            this._updated.add(item);
+            this._updatedColumns.add(String.join(", ", columns));
+         }
+      }//end for
+      for (Item item : current.values()) {
+         if (wanted.containsKey(item.itemName))
+            continue;
+         if (open.contains(item.itemName))
+            this._refused.add(item);
+         else if (!referenced.contains(item.itemName))
+            this._deleted.add(item);
+         else if (!RETIRED.equals(item.type))
+            this._retired.add(item);
+      }//end for
+   }//end MenuImport
+
+   /**
+    * Reads a menu file and compares it with the current Menu
+    *
+    * @param esql the database holding the menu
+    * @param file the menu file
+    * @return the import plan
+    * @throws java.io.IOException when the file cannot be read or is invalid
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static MenuImport plan (Cafe esql, File file) throws IOException, SQLException {
+      Map<String, Item> wanted = read(file);
+
+      Map<String, Item> current = new LinkedHashMap<String, Item>();
+      for (List<String> row : esql.executeQueryAndReturnResult(MENU_QUERY)) {
+         Item item = new Item(row.get(0), row.get(1), row.get(2), row.get(3), row.get(4));
+         current.put(item.itemName, item);
+      }
+
+      // ItemStatus lives on the shards when sharded, merge their counts
+      Set<String> open = new HashSet<String>();
+      Set<String> referenced = new HashSet<String>();
+      for (List<String> row : esql.executeFanOutQueryAndReturnResult(REFERENCED_QUERY)) {
+         String name = row.get(0).trim();
+         referenced.add(name);
+         if (Integer.parseInt(row.get(1).trim()) > 0)
+            open.add(name);
+      }
+      return new MenuImport(current, wanted, open, referenced);
+   }//end plan
+
+   /**
+    * Reads a menu file of itemName;type;price;description;imageURL lines
+    *
+    * @param file the menu file
+    * @return the items by item name, in file order
+    * @throws java.io.IOException when the file cannot be read or is invalid
+    */
+   public static Map<String, Item> read (File file) throws IOException {
+      Map<String, Item> items = new LinkedHashMap<String, Item>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line;
+         int number = 0;
+         while ((line = reader.readLine()) != null) {
+            number++;
+            if (line.trim().isEmpty())
+               continue;
+            String[] fields = line.split(";", -1);
+            if (fields.length != 5)
+               throw new IOException(file + ":" + number + ": expected 5 fields, found " + fields.length);
+            Item item = new Item(fields[0], fields[1], price(file, number, fields[2]), fields[3], fields[4]);
+            check(file, number, "itemName", item.itemName, 50);
+            check(file, number, "type", item.type, 20);
+            check(file, number, "description", item.description, 400);
+            check(file, number, "imageURL", item.imageURL, 256);
+            if (item.itemName.isEmpty() || item.type.isEmpty())
+               throw new IOException(file + ":" + number + ": itemName and type are required");
+            if (items.put(item.itemName, item) != null)
+               throw new IOException(file + ":" + number + ": duplicate item '" + item.itemName + "'");
+         }//end while
+      }finally {
+         reader.close();
+      }//end try
+      return items;
+   }//end read
+
+   // the price as a plain decimal, the only form written into the statements
+   private static String price (File file, int number, String value) throws IOException {
+      try {
+         BigDecimal price = new BigDecimal(value.trim());
+         if (price.signum() >= 0 && !Float.isInfinite(price.floatValue()))
+            return price.toPlainString();
+      }catch (NumberFormatException e) {
+         // reported below
+      }
+      throw new IOException(file + ":" + number + ": invalid price '" + value.trim() + "'");
+   }//end price
+
+   private static void check (File file, int number, String column, String value, int length) throws IOException {
+      if (value.length() > length)
+         throw new IOException(file + ":" + number + ": " + column + " is longer than " + length + " characters");
+   }
+
+   /**
+    * @return the number of statements the plan applies
+    */
+   public int changes () {
+      return this._added.size() + this._updated.size() + this._retired.size() + this._deleted.size();
+   }
+
+   /**
+    * @return the statements that apply the plan, in order
+    */
+   public List<String> statements () {
+      List<String> sqls = new ArrayList<String>(changes());
+      for (Item item : this._updated) {
+         sqls.add(String.format("UPDATE Menu SET type = '%s', price = %s, description = '%s', imageURL = '%s' WHERE itemName = '%s'",
+                                quote(item.type), item.price, quote(item.description), quote(item.imageURL), quote(item.itemName)));
+      }
+      for (Item item : this._added) {
+         sqls.add(String.format("INSERT INTO Menu(itemName, type, price, description, imageURL) VALUES ('%s', '%s', %s, '%s', '%s')",
+                                quote(item.itemName), quote(item.type), item.price, quote(item.description), quote(item.imageURL)));
+      }
+      for (Item item : this._retired)
+         sqls.add(String.format("UPDATE Menu SET type = '%s' WHERE itemName = '%s'", RETIRED, quote(item.itemName)));
+      for (Item item : this._deleted)
+         sqls.add(String.format("DELETE FROM Menu WHERE itemName = '%s'", quote(item.itemName)));
+      return sqls;
+   }//end statements
+
+   /**
+    * Outputs the planned changes to standard out.
+    */
+   public void print () {
+      for (Item item : this._added)
+         System.out.println("\tadd     " + item.itemName + " (" + item.type + ", " + item.price + ")");
+      for (int i = 0; i < this._updated.size(); i++)
+         System.out.println("\tupdate  " + this._updated.get(i).itemName + " (" + this._updatedColumns.get(i) + ")");
+      for (Item item : this._retired)
+         System.out.println("\tretire  " + item.itemName + " (in past orders)");
+      for (Item item : this._deleted)
+         System.out.println("\tdelete  " + item.itemName);
+      for (Item item : this._refused)
+         System.out.println("\tkeep    " + item.itemName + " (has open orders, not removed)");
+      System.out.println(String.format("%d added, %d updated, %d retired, %d deleted, %d kept with open orders",
+                                       this._added.size(), this._updated.size(), this._retired.size(),
+                                       this._deleted.size(), this._refused.size()));
+   }//end print
+
+   private static String quote (String value) {
+      return value.replace("'", "''");
+   }
+
+}//end MenuImport
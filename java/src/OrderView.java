@@ -0,0 +1,107 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * This class holds one Orders row together with all of its ItemStatus rows,
+ * as read by a single joined query.  Instances are immutable so they can be
+ * shared through the order view cache.
+ *
+ */
+public class OrderView {
+
+   // joins the order with its items, orders without items still return one row
+   public static final String QUERY =
+      "SELECT O.orderid, O.login, O.paid, O.timeStampRecieved, O.total, " +
+      "I.itemName, I.status, I.lastUpdated, I.comments " +
+      "FROM Orders O LEFT JOIN ItemStatus I ON I.orderid = O.orderid " +
+      "WHERE O.orderid = %d";
+
+   /**
+    * One ItemStatus row of the order
+    */
+   public static class Item {
+      public final String itemName;
+      public final String status;
+      public final String lastUpdated;
+      public final String comments;
+
+      Item (String itemName, String status, String lastUpdated, String comments) {
+         this.itemName = itemName;
+         this.status = status;
+         this.lastUpdated = lastUpdated;
+         this.comments = comments;
+      }
+   }//end Item
+
+   public final int orderid;
+   public final String login;
+   public final boolean paid;
+   public final String timeStampRecieved;
+   public final String total;
+   public final List<Item> items;
+
+   private OrderView (int orderid, String login, boolean paid, String timeStampRecieved,
+                      String total, List<Item> items) {
+      this.orderid = orderid;
+      this.login = login;
+      this.paid = paid;
+      this.timeStampRecieved = timeStampRecieved;
+      this.total = total;
+      this.items = Collections.unmodifiableList(items);
+   }//end OrderView
+
+   /**
+    * Builds the view from the rows returned by QUERY
+    *
+    * @param rows the query result as a list of records
+    * @return the order view, or null when the order does not exist
+    */
+   public static OrderView fromRows (List<List<String>> rows) {
+      if (rows.isEmpty())
+         return null;
+      List<String> first = rows.get(0);
+      List<Item> items = new ArrayList<Item>(rows.size());
+      for (List<String> row : rows) {
+         // the LEFT JOIN gives a null item for an order without items
+         if (row.get(5) != null)
+            items.add(new Item(trim(row.get(5)), trim(row.get(6)), row.get(7), trim(row.get(8))));
+      }
+      return new OrderView(Integer.parseInt(first.get(0)), trim(first.get(1)),
+                           "t".equals(first.get(2)) || "true".equals(first.get(2)),
+                           first.get(3), first.get(4), items);
+   }//end fromRows
+
+   /**
+    * Outputs the order and its items to standard out
+    */
+   public void print () {
+      System.out.println("orderid\tlogin\tpaid\ttimestamprecieved\ttotal\t");
+      System.out.println(this.orderid + "\t" + this.login + "\t" + this.paid + "\t" +
+                         this.timeStampRecieved + "\t" + this.total + "\t");
+      if (this.items.isEmpty())
+         return;
+      System.out.println("itemname\tstatus\tlastupdated\tcomments\t");
+      for (Item item : this.items)
+         System.out.println(item.itemName + "\t" + item.status + "\t" + item.lastUpdated + "\t" + item.comments + "\t");
+   }//end print
+
+   private static String trim (String value) {
+      // char(n) columns come back padded with spaces
+      return (value == null) ? null : value.trim();
+   }
+
+}//end OrderView
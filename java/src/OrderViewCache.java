@@ -0,0 +1,147 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the most recently used order views, keyed by orderid.
+ *
+ * Every change this process makes to an order is stamped from one counter.
+ * A view is only served while no change of its order is stamped after the
+ * load started, so a load that raced with a change is never returned.  The
+ * stamps of the most recently changed orders are kept, as many as views;
+ * older orders are treated as changed at the newest stamp dropped, which at
+ * worst reloads a view.  Changes made by other terminals are picked up once
+ * a view is older than the time to live.
+ *
+ * The size is set with -Dcafe.orderview.cache.size and the time to live
+ * with -Dcafe.orderview.ttl.ms.
+ *
+ */
+public class OrderViewCache {
+
+   public static final int DEFAULT_SIZE = 1024;
+   public static final long DEFAULT_TTL_MS = 5000;
+
+   private static class Entry {
+      final OrderView view;
+      final long version;
+      final long loaded;
+
+      Entry (OrderView view, long version, long loaded) {
+         this.view = view;
+         this.version = version;
+         this.loaded = loaded;
+      }
+   }//end Entry
+
+   private final long _ttlMillis;
+
+   // least recently used order is evicted first
+   private final Map<Integer, Entry> _entries;
+
+   // stamp of the last change of recently changed orders, guarded by this
+   private final Map<Integer, Long> _changes;
+   private long _clock = 0;
+
+   // newest stamp dropped from _changes, assumed for every order not in it
+   private long _dropped = 0;
+
+   /**
+    * Creates a new cache
+    *
+    * @param size the most order views kept
+    * @param ttlMillis how long a view is served without reloading it
+    */
+   public OrderViewCache (final int size, long ttlMillis) {
+      this._ttlMillis = ttlMillis;
+      this._entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry (Map.Entry<Integer, Entry> eldest) {
+            return size() > size;
+         }
+      };
+      this._changes = new LinkedHashMap<Integer, Long>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry (Map.Entry<Integer, Long> eldest) {
+            if (size() <= Math.max(size, 1))
+               return false;
+            _dropped = Math.max(_dropped, eldest.getValue());
+            return true;
+         }
+      };
+   }//end OrderViewCache
+
+   /**
+    * Creates a cache configured from the cafe.orderview.* system properties
+    *
+    * @return the configured cache
+    */
+   public static OrderViewCache fromSystemProperties () {
+      return new OrderViewCache(Integer.getInteger("cafe.orderview.cache.size", DEFAULT_SIZE),
+                                Long.getLong("cafe.orderview.ttl.ms", DEFAULT_TTL_MS));
+   }//end fromSystemProperties
+
+   /**
+    * @param orderid the order id
+    * @return the version to pass to put, read before loading the order
+    */
+   public synchronized long version (int orderid) {
+      return this._clock;
+   }
+
+   // stamp of the last change of the order, the newest dropped one when unknown
+   private long lastChange (int orderid) {
+      Long stamp = this._changes.get(orderid);
+      return (stamp == null) ? this._dropped : stamp;
+   }
+
+   /**
+    * @param orderid the order id
+    * @return the cached view, or null when missing, changed or expired
+    */
+   public synchronized OrderView get (int orderid) {
+      Entry entry = this._entries.get(orderid);
+      if (entry == null)
+         return null;
+      if (lastChange(orderid) > entry.version ||
+          System.currentTimeMillis() - entry.loaded >= this._ttlMillis) {
+         this._entries.remove(orderid);
+         return null;
+      }
+      return entry.view;
+   }//end get
+
+   /**
+    * Caches a view loaded while the order was at the given version
+    *
+    * @param view the loaded view
+    * @param version the version read before loading the view
+    */
+   public synchronized void put (OrderView view, long version) {
+      if (lastChange(view.orderid) <= version)
+         this._entries.put(view.orderid, new Entry(view, version, System.currentTimeMillis()));
+   }//end put
+
+   /**
+    * Marks the order as changed, dropping its cached view
+    *
+    * @param orderid the order id
+    */
+   public synchronized void invalidate (int orderid) {
+      this._changes.put(orderid, ++this._clock);
+      this._entries.remove(orderid);
+   }//end invalidate
+
+}//end OrderViewCache
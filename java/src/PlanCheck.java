@@ -0,0 +1,381 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class runs EXPLAIN (ANALYZE, BUFFERS) for every SQL template Cafe
+ * issues and compares the plans with a stored baseline.  It exits with
+ * status 1 when a template gains a sequential scan, reads many more buffers
+ * or runs much slower than in the baseline, and proposes indexes for every
+ * sequential scan it finds.  A missing baseline is an error too; --record
+ * writes one from the current plans.
+ *
+ * sql/scripts/plan_check.sh seeds a database at a given scale with
+ * DataGenerator before running it.
+ *
+ * Usage: java PlanCheck <dbname> <port> [--baseline=file] [--record]
+ *        [--buffer-factor=1.5] [--time-factor=3]
+ *
+ */
+public class PlanCheck {
+
+   // templates as issued by Cafe, {login}, {orderid} and {item} are filled
+   // from the data; updates run in a transaction that is rolled back
+   private static final String[][] TEMPLATES = {
+      { "login", String.format(Cafe.LOGIN_QUERY, "{login}", "x") },
+      { "find_type", String.format(Cafe.TYPE_QUERY, "{login}") },
+      { "user_directory", UserDirectory.LOAD_QUERY },
+      { "search_users", "SELECT DISTINCT(login) FROM Users WHERE login LIKE '%Amy%'" },
+      { "search_menu", "SELECT DISTINCT(itemName) FROM Menu WHERE itemName LIKE '%Soup%' AND type <> '" + MenuImport.RETIRED + "'" },
+      { "browse_menu", Cafe.MENU_QUERY },
+      { "browse_menu_type", String.format(Cafe.MENU_TYPE_QUERY, "Drinks") },
+      { "view_user_info", String.format(Cafe.USER_INFO_QUERY, "{login}") },
+      { "max_orderid", Cafe.MAX_ORDERID_QUERY },
+      { "item_price", String.format(Cafe.PRICE_QUERY, "{item}") },
+      { "unpaid_orders", String.format(Cafe.UNPAID_ITEMS_QUERY, "{login}") },
+      { "order_history", String.format(Cafe.ORDER_HISTORY_QUERY, "{login}") },
+      { "current_orders", Cafe.CURRENT_ORDERS_QUERY },
+      { "order_view", String.format(OrderView.QUERY.replace("%d", "%s"), "{orderid}") },
+      { "item_status_by_order", String.format(Cafe.ORDER_ITEMS_QUERY, "{orderid}") },
+      { "item_status_update", String.format(Cafe.ITEM_STATUS_UPDATE, KitchenScheduler.STARTED, "{item}", "{orderid}",
+                                            KitchenScheduler.NOT_STARTED.replace("'", "''")) },
+      { "kitchen_open_items", KitchenScheduler.LOAD_QUERY },
+      { "menu_import", MenuImport.MENU_QUERY },
+      { "menu_import_referenced", MenuImport.REFERENCED_QUERY }
+   };
+
+   private static final Pattern NODE = Pattern.compile("^\\s*(?:->\\s+)?(.+?)\\s+\\(cost=");
+   private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)");
+   private static final Pattern BUFFERS = Pattern.compile("Buffers: shared(?: hit=(\\d+))?(?: read=(\\d+))?");
+   private static final Pattern EXECUTION = Pattern.compile("Execution Time: ([0-9.]+) ms");
+   private static final Pattern CONDITION = Pattern.compile("\\(*(?:\\w+\\.)?(\\w+)\\)*(?:::[\\w ]+)?\\s*(=|<>|<=|>=|<|>|~~\\*?)\\s");
+   private static final Pattern NOT_COLUMN = Pattern.compile("\\(NOT (\\w+)\\)");
+   private static final Pattern SORT_KEY = Pattern.compile("Sort Key: (.+)");
+
+   /**
+    * Measurements of one template's plan
+    */
+   static class Plan {
+      String name;
+      String shape;
+      long buffers;
+      double millis;
+      Set<String> seqScans = new LinkedHashSet<String>();
+
+      String toLine () {
+         return this.name + "\t" + this.buffers + "\t" + this.millis + "\t" +
+                String.join(",", this.seqScans) + "\t" + this.shape;
+      }
+
+      static Plan fromLine (String line) {
+         String[] fields = line.split("\t", -1);
+         Plan plan = new Plan();
+         plan.name = fields[0];
+         plan.buffers = Long.parseLong(fields[1]);
+         plan.millis = Double.parseDouble(fields[2]);
+         for (String table : fields[3].split(","))
+            if (!table.isEmpty())
+               plan.seqScans.add(table);
+         plan.shape = fields[4];
+         return plan;
+      }
+   }//end Plan
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments, see the class comment
+    */
+   public static void main (String[] args) {
+      if (args.length < 2) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            PlanCheck.class.getName () +
+            " <dbname> <port> [--baseline=file] [--record] [--buffer-factor=1.5] [--time-factor=3]");
+         return;
+      }//end if
+
+      File baselineFile = new File("plan_baseline.tsv");
+      boolean record = false;
+      double bufferFactor = 1.5;
+      double timeFactor = 3;
+      for (int i = 2; i < args.length; i++) {
+         String[] option = args[i].split("=", 2);
+         switch (option[0]) {
+            case "--baseline": baselineFile = new File(option[1]); break;
+            case "--record": record = true; break;
+            case "--buffer-factor": bufferFactor = Double.parseDouble(option[1]); break;
+            case "--time-factor": timeFactor = Double.parseDouble(option[1]); break;
+            default: System.err.println("Unknown option " + args[i]); System.exit(-1);
+         }//end switch
+      }//end for
+
+      int failures = 0;
+      try {
+         Class.forName ("org.postgresql.Driver");
+         String url = "jdbc:postgresql://127.0.0.1:" + args[1] + "/" + args[0];
+         try (Connection conn = DriverManager.getConnection(url)) {
+            Map<String, Plan> baseline = readBaseline(baselineFile);
+            if (baseline.isEmpty() && !record) {
+               System.err.println("No baseline at " + baselineFile + ", run with --record to write one.");
+               System.exit(1);
+            }
+
+            Map<String, String> params = sampleParameters(conn);
+            List<Plan> plans = new ArrayList<Plan>();
+            Set<String> proposals = new LinkedHashSet<String>();
+            for (String[] template : TEMPLATES) {
+               String query = template[1];
+               for (Map.Entry<String, String> param : params.entrySet())
+                  query = query.replace("{" + param.getKey() + "}", param.getValue());
+               List<String> lines = explain(conn, query);
+               Plan plan = parse(template[0], lines);
+               plans.add(plan);
+               proposals.addAll(proposeIndexes(lines));
+
+               Plan base = baseline.get(plan.name);
+               String verdict = (base == null) ? "new" : compare(plan, base, bufferFactor, timeFactor);
+               if (!record && verdict.startsWith("FAIL"))
+                  failures++;
+               System.out.printf("%-22s %8d buffers %10.3f ms  %s%n", plan.name, plan.buffers, plan.millis, verdict);
+               if (!plan.seqScans.isEmpty())
+                  System.out.println("                       seq scan on " + String.join(", ", plan.seqScans));
+            }//end for
+
+            if (!proposals.isEmpty()) {
+               System.out.println("\nProposed indexes for the sequential scans found:");
+               for (String proposal : proposals)
+                  System.out.println(proposal);
+            }
+            if (record) {
+               writeBaseline(baselineFile, plans);
+               System.out.println("\nBaseline written to " + baselineFile);
+            }
+         }//end try
+      }catch (Exception e) {
+         System.err.println (e.getMessage ());
+         System.exit(-1);
+      }//end try
+
+      if (failures > 0) {
+         System.out.println("\n" + failures + " plan regression(s) found.");
+         System.exit(1);
+      }
+   }//end main
+
+   /*
+    * Picks an existing order, its login and one of its items so every
+    * template returns rows
+    **/
+   private static Map<String, String> sampleParameters (Connection conn) throws SQLException {
+      Map<String, String> params = new LinkedHashMap<String, String>();
+      params.put("orderid", "1");
+      params.put("login", "Admin");
+      params.put("item", "Coffee");
+      try (Statement stmt = conn.createStatement();
+           ResultSet rs = stmt.executeQuery("SELECT O.orderid, O.login, I.itemName FROM Orders O, ItemStatus I " +
+                                            "WHERE I.orderid = O.orderid ORDER BY O.orderid DESC LIMIT 1")) {
+         if (rs.next()) {
+            params.put("orderid", rs.getString(1));
+            params.put("login", rs.getString(2).trim().replace("'", "''"));
+            params.put("item", rs.getString(3).trim().replace("'", "''"));
+         }
+      }
+      return params;
+   }//end sampleParameters
+
+   private static List<String> explain (Connection conn, String query) throws SQLException {
+      List<String> lines = new ArrayList<String>();
+      // EXPLAIN ANALYZE runs the statement, an update must not stay
+      boolean update = !query.startsWith("SELECT");
+      if (update)
+         conn.setAutoCommit(false);
+      try (Statement stmt = conn.createStatement();
+           ResultSet rs = stmt.executeQuery("EXPLAIN (ANALYZE, BUFFERS) " + query)) {
+         while (rs.next())
+            lines.add(rs.getString(1));
+      }finally {
+         if (update) {
+            conn.rollback();
+            conn.setAutoCommit(true);
+         }
+      }//end try
+      return lines;
+   }//end explain
+
+   /*
+    * Extracts the plan shape, the top node's buffers and the execution time
+    **/
+   static Plan parse (String name, List<String> lines) {
+      Plan plan = new Plan();
+      plan.name = name;
+      List<String> nodes = new ArrayList<String>();
+      boolean topBuffers = true;
+      for (String line : lines) {
+         Matcher m = NODE.matcher(line);
+         if (m.find()) {
+            String node = m.group(1);
+            Matcher scan = SEQ_SCAN.matcher(node);
+            if (scan.find())
+               plan.seqScans.add(scan.group(1).toLowerCase());
+            // drop the table alias, it does not change the plan
+            nodes.add(node.replaceAll(" on (\\w+) \\w+$", " on $1"));
+            continue;
+         }
+         m = BUFFERS.matcher(line);
+         if (m.find() && topBuffers) {
+            plan.buffers = (m.group(1) == null ? 0 : Long.parseLong(m.group(1))) +
+                           (m.group(2) == null ? 0 : Long.parseLong(m.group(2)));
+            topBuffers = false;
+            continue;
+         }
+         m = EXECUTION.matcher(line);
+         if (m.find())
+            plan.millis = Double.parseDouble(m.group(1));
+      }//end for
+      plan.shape = String.join(" > ", nodes);
+      return plan;
+   }//end parse
+
+   /*
+    * Compares a plan with its baseline, the verdict starts with FAIL on a regression
+    **/
+   static String compare (Plan plan, Plan base, double bufferFactor, double timeFactor) {
+      List<String> problems = new ArrayList<String>();
+      for (String table : plan.seqScans) {
+         if (!base.seqScans.contains(table))
+            problems.add("new seq scan on " + table);
+      }
+      if (plan.buffers > base.buffers * bufferFactor + 10)
+         problems.add("buffers " + base.buffers + " -> " + plan.buffers);
+      // small queries are noisy, only flag slowdowns of a few milliseconds
+      if (plan.millis > base.millis * timeFactor && plan.millis - base.millis > 5)
+         problems.add(String.format("time %.3f -> %.3f ms", base.millis, plan.millis));
+      if (!problems.isEmpty())
+         return "FAIL: " + String.join("; ", problems);
+      return plan.shape.equals(base.shape) ? "ok" : "ok (plan changed)";
+   }//end compare
+
+   /*
+    * Proposes an index for every sequential scan, from its filter and the
+    * sort keys above it
+    **/
+   static List<String> proposeIndexes (List<String> lines) {
+      List<String> proposals = new ArrayList<String>();
+      List<String> sortKeys = new ArrayList<String>();
+      for (String line : lines) {
+         Matcher m = SORT_KEY.matcher(line);
+         if (m.find())
+            sortKeys.add(m.group(1));
+      }
+
+      for (int i = 0; i < lines.size(); i++) {
+         Matcher scan = SEQ_SCAN.matcher(lines.get(i));
+         if (!NODE.matcher(lines.get(i)).find() || !scan.find())
+            continue;
+         String table = scan.group(1).toLowerCase();
+         Set<String> equality = new LinkedHashSet<String>();
+         Set<String> range = new LinkedHashSet<String>();
+         Set<String> like = new LinkedHashSet<String>();
+         // the scan's own details follow it until the next node
+         for (int j = i + 1; j < lines.size() && !NODE.matcher(lines.get(j)).find(); j++) {
+            String detail = lines.get(j).trim();
+            if (!detail.startsWith("Filter:"))
+               continue;
+            Matcher c = CONDITION.matcher(detail);
+            while (c.find()) {
+               String column = c.group(1).toLowerCase();
+               String op = c.group(2);
+               if (op.startsWith("~~"))
+                  like.add(column);
+               else if (op.equals("="))
+                  equality.add(column);
+               else if (!op.equals("<>"))
+                  range.add(column);
+            }
+            Matcher not = NOT_COLUMN.matcher(detail);
+            while (not.find())
+               equality.add(not.group(1).toLowerCase());
+         }//end for
+
+         for (String column : like)
+            proposals.add(String.format("CREATE INDEX %s_%s_trgm ON %s USING gin (%s gin_trgm_ops); -- needs CREATE EXTENSION pg_trgm",
+                                        table, column, table, column));
+         List<String> columns = new ArrayList<String>(equality);
+         columns.addAll(range);
+         if (columns.isEmpty()) {
+            // an unfiltered scan feeding a sort is served by an index on the sort key
+            for (String keys : sortKeys) {
+               for (String key : keys.split(",")) {
+                  key = key.trim();
+                  String column = key.replaceAll("^(?:\\w+\\.)?(\\w+).*$", "$1").toLowerCase();
+                  if (!key.contains(".") || key.toLowerCase().startsWith(table + "."))
+                     columns.add(column);
+               }
+            }
+         }
+         if (!columns.isEmpty())
+            proposals.add(String.format("CREATE INDEX %s_%s ON %s (%s);", table, String.join("_", columns),
+                                        table, String.join(", ", columns)));
+      }//end for
+      return proposals;
+   }//end proposeIndexes
+
+   private static Map<String, Plan> readBaseline (File file) throws IOException {
+      Map<String, Plan> baseline = new LinkedHashMap<String, Plan>();
+      if (!file.exists())
+         return baseline;
+      try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+         String line;
+         while ((line = in.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#"))
+               continue;
+            Plan plan = Plan.fromLine(line);
+            baseline.put(plan.name, plan);
+         }
+      }
+      return baseline;
+   }//end readBaseline
+
+   private static void writeBaseline (File file, List<Plan> plans) throws IOException {
+      try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+         out.write("# name\tbuffers\tmillis\tseq scans\tplan shape");
+         out.newLine();
+         for (Plan plan : plans) {
+            out.write(plan.toLine());
+            out.newLine();
+         }
+      }
+   }//end writeBaseline
+
+}//end PlanCheck
@@ -0,0 +1,264 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class routes read-only queries to replica connections and keeps
+ * writes, and reads that closely follow a write, on the primary connection.
+ *
+ * Replicas are configured with -Dcafe.replicas=<port|host:port>,... and the
+ * selection policy with -Dcafe.replica.policy=roundrobin|leastloaded.  After
+ * every write the primary keeps serving reads for -Dcafe.replica.staleness.ms
+ * milliseconds so a terminal always sees its own changes.
+ *
+ * A replica whose connection fails is left out for -Dcafe.replica.retry.ms
+ * milliseconds and reconnected on the next read after that.  Reads only
+ * fall back to the primary on connection failures, not on query errors.
+ *
+ */
+public class ReplicaRouter {
+
+   public static final String ROUND_ROBIN = "roundrobin";
+   public static final String LEAST_LOADED = "leastloaded";
+
+   // default time a replica is allowed to lag behind our own writes
+   public static final long DEFAULT_STALENESS_MS = 2000;
+
+   // default time a failed replica rests before it is reconnected
+   public static final long DEFAULT_RETRY_MS = 5000;
+
+   // reference to the primary connection, owned by Cafe
+   private final Connection _primary;
+
+   // replica connections and the number of queries running on each
+   private final List<Connection> _replicas = new ArrayList<Connection>();
+   private final List<AtomicInteger> _inFlight = new ArrayList<AtomicInteger>();
+   private final List<String> _urls = new ArrayList<String>();
+
+   // per replica, the time until which it is down; a down replica's
+   // connection is null until it is reconnected
+   private final List<Long> _downUntil = new ArrayList<Long>();
+
+   private final boolean _leastLoaded;
+   private final long _stalenessMillis;
+   private final long _retryMillis;
+   private final AtomicInteger _next = new AtomicInteger();
+
+   // time of the last write issued through the primary
+   private volatile long _lastWrite = 0;
+
+   /**
+    * Creates a new router over the given primary connection
+    *
+    * @param primary the primary (read-write) connection
+    * @param dbname the name of the database on every replica
+    * @param replicas comma separated list of replica ports or host:port pairs, may be null
+    * @param policy the replica selection policy, roundrobin or leastloaded
+    * @param stalenessMillis how long reads stay on the primary after a write
+    * @param retryMillis how long a failed replica rests before it is reconnected
+    */
+   public ReplicaRouter (Connection primary, String dbname, String replicas,
+                         String policy, long stalenessMillis, long retryMillis) {
+      this._primary = primary;
+      this._leastLoaded = LEAST_LOADED.equalsIgnoreCase(policy);
+      this._stalenessMillis = stalenessMillis;
+      this._retryMillis = retryMillis;
+
+      if (replicas == null || replicas.trim().isEmpty())
+         return;
+      for (String replica : replicas.split(",")) {
+         replica = replica.trim();
+         if (replica.isEmpty())
+            continue;
+         String host = "127.0.0.1";
+         String port = replica;
+         int colon = replica.lastIndexOf(':');
+         if (colon >= 0) {
+            host = replica.substring(0, colon);
+            port = replica.substring(colon + 1);
+         }
+         String url = "jdbc:postgresql://" + host + ":" + port + "/" + dbname;
+         System.out.println ("Replica URL: " + url);
+         this._replicas.add(null);
+         this._inFlight.add(new AtomicInteger());
+         this._urls.add(url);
+         this._downUntil.add(0L);
+         reconnect(this._replicas.size() - 1);
+      }//end for
+   }//end ReplicaRouter
+
+   /**
+    * Creates a router configured from the cafe.replica* system properties
+    *
+    * @param primary the primary (read-write) connection
+    * @param dbname the name of the database on every replica
+    * @return the configured router
+    */
+   public static ReplicaRouter fromSystemProperties (Connection primary, String dbname) {
+      return new ReplicaRouter(primary, dbname,
+                               System.getProperty("cafe.replicas"),
+                               System.getProperty("cafe.replica.policy", ROUND_ROBIN),
+                               Long.getLong("cafe.replica.staleness.ms", DEFAULT_STALENESS_MS),
+                               Long.getLong("cafe.replica.retry.ms", DEFAULT_RETRY_MS));
+   }//end fromSystemProperties
+
+   /**
+    * @return the number of configured replicas
+    */
+   public int replicaCount () {
+      return this._replicas.size();
+   }
+
+   /**
+    * Records that a write was issued on the primary, pinning reads to the
+    * primary for the configured staleness window.
+    */
+   public void recordWrite () {
+      this._lastWrite = System.currentTimeMillis();
+   }
+
+   /**
+    * @return true when reads must stay on the primary to see our own writes
+    */
+   public boolean inReadYourWritesWindow () {
+      return System.currentTimeMillis() - this._lastWrite < this._stalenessMillis;
+   }
+
+   /**
+    * Picks a connection for a read-only query.  Every call must be paired
+    * with a call to release.
+    *
+    * @return a replica connection, or the primary when there are no replicas
+    *         up, or when we wrote recently
+    */
+   public synchronized Connection acquireRead () {
+      if (this._replicas.isEmpty() || inReadYourWritesWindow())
+         return this._primary;
+      int index;
+      while ((index = pick()) >= 0) {
+         if (this._replicas.get(index) != null || reconnect(index))
+            break;
+      }
+      if (index < 0)
+         return this._primary;
+      this._inFlight.get(index).incrementAndGet();
+      return this._replicas.get(index);
+   }//end acquireRead
+
+   // picks a replica that is not resting by the configured policy, -1 when none is
+   private int pick () {
+      long now = System.currentTimeMillis();
+      int n = this._replicas.size();
+      int index = -1;
+      if (this._leastLoaded) {
+         for (int i = 0; i < n; i++) {
+            if (this._downUntil.get(i) <= now &&
+                (index < 0 || this._inFlight.get(i).get() < this._inFlight.get(index).get()))
+               index = i;
+         }
+         return index;
+      }
+      for (int i = 0; i < n; i++) {
+         index = Math.floorMod(this._next.getAndIncrement(), n);
+         if (this._downUntil.get(index) <= now)
+            return index;
+      }
+      return -1;
+   }//end pick
+
+   // reopens the connection of a rested replica, resting it again on failure
+   private boolean reconnect (int index) {
+      try {
+         this._replicas.set(index, DriverManager.getConnection(this._urls.get(index)));
+         return true;
+      }catch (SQLException e) {
+         System.err.println ("Replica " + this._urls.get(index) + " is unavailable: " + e.getMessage ());
+         this._downUntil.set(index, System.currentTimeMillis() + this._retryMillis);
+         return false;
+      }
+   }//end reconnect
+
+   /**
+    * Takes a replica whose connection failed out of rotation for the retry
+    * interval.  Its connection is closed and reopened once the interval has
+    * passed.
+    *
+    * @param conn a replica connection obtained from acquireRead
+    */
+   public synchronized void markDown (Connection conn) {
+      int index = this._replicas.indexOf(conn);
+      if (index < 0)
+         return;
+      System.err.println ("Replica " + this._urls.get(index) + " is unavailable, retrying in " + this._retryMillis + " ms");
+      try {
+         conn.close();
+      }catch (SQLException e) {
+         // ignored.
+      }
+      this._replicas.set(index, null);
+      this._inFlight.get(index).set(0);
+      this._downUntil.set(index, System.currentTimeMillis() + this._retryMillis);
+   }//end markDown
+
+   /**
+    * @param e an exception thrown by a query
+    * @return true when the exception means the connection is lost, as
+    *         opposed to an error in the query itself
+    */
+   public static boolean isConnectionFailure (SQLException e) {
+      String state = e.getSQLState();
+      // 08: connection exception, 57P: the server ended or refused the session
+      return state != null && (state.startsWith("08") || state.startsWith("57P"));
+   }//end isConnectionFailure
+
+   /**
+    * Returns a connection obtained from acquireRead.
+    *
+    * @param conn the connection to release
+    */
+   public synchronized void release (Connection conn) {
+      int index = this._replicas.indexOf(conn);
+      if (index >= 0)
+         this._inFlight.get(index).decrementAndGet();
+   }
+
+   /**
+    * @param conn a connection obtained from acquireRead
+    * @return true when the connection is the primary
+    */
+   public boolean isPrimary (Connection conn) {
+      return conn == this._primary;
+   }
+
+   /**
+    * Closes all replica connections.  The primary is left to its owner.
+    */
+   public void cleanup () {
+      for (Connection replica : this._replicas) {
+         if (replica == null)
+            continue;
+         try {
+            replica.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }//end for
+   }//end cleanup
+
+}//end ReplicaRouter
@@ -0,0 +1,332 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class spreads the Orders and ItemStatus tables over several databases
+ * by hashing Orders.login.  Users and Menu stay on the home database given to
+ * Cafe on the command line, and Menu is copied to every shard so the
+ * ItemStatus foreign key holds on each of them.
+ *
+ * Shards are configured with -Dcafe.shards=<port|host:port>,...  Each shard
+ * needs the tables from create_tables.sql and the rows of Menu.
+ *
+ * New order ids are allocated so that orderid mod N is the shard of the
+ * order, which lets lookups by order id go straight to one shard.  Orders
+ * loaded from elsewhere are found by probing every shard in parallel.
+ *
+ */
+public class ShardRouter {
+
+   // one connection per shard, indexed by shard number
+   private final List<Connection> _shards = new ArrayList<Connection>();
+
+   // runs fan-out queries, one task per shard
+   private final ExecutorService _pool;
+
+   // shard of every order we have already located
+   private final Map<Integer, Integer> _orderShard = new ConcurrentHashMap<Integer, Integer>();
+
+   /**
+    * Creates a new router with one connection per shard
+    *
+    * @param dbname the name of the database on every shard
+    * @param shards comma separated list of shard ports or host:port pairs
+    * @throws java.sql.SQLException when failed to connect to a shard.
+    */
+   public ShardRouter (String dbname, String shards) throws SQLException {
+      for (String shard : shards.split(",")) {
+         shard = shard.trim();
+         if (shard.isEmpty())
+            continue;
+         String host = "127.0.0.1";
+         String port = shard;
+         int colon = shard.lastIndexOf(':');
+         if (colon >= 0) {
+            host = shard.substring(0, colon);
+            port = shard.substring(colon + 1);
+         }
+         String url = "jdbc:postgresql://" + host + ":" + port + "/" + dbname;
+         System.out.println ("Shard " + this._shards.size() + " URL: " + url);
+         this._shards.add(DriverManager.getConnection(url));
+      }//end for
+      if (this._shards.isEmpty())
+         throw new SQLException("No shards configured");
+
+      this._pool = Executors.newFixedThreadPool(this._shards.size(), r -> {
+         Thread t = new Thread(r, "cafe-shard");
+         t.setDaemon(true);
+         return t;
+      });
+   }//end ShardRouter
+
+   /**
+    * Creates a router configured from the cafe.shards system property
+    *
+    * @param dbname the name of the database on every shard
+    * @return the configured router, or null when sharding is not enabled
+    * @throws java.sql.SQLException when failed to connect to a shard.
+    */
+   public static ShardRouter fromSystemProperties (String dbname) throws SQLException {
+      String shards = System.getProperty("cafe.shards");
+      if (shards == null || shards.trim().isEmpty())
+         return null;
+      return new ShardRouter(dbname, shards);
+   }//end fromSystemProperties
+
+   /**
+    * @return the number of shards
+    */
+   public int shardCount () {
+      return this._shards.size();
+   }
+
+   /**
+    * @param shard the shard number
+    * @return the connection of the given shard
+    */
+   public Connection connection (int shard) {
+      return this._shards.get(shard);
+   }
+
+   /**
+    * @param login the login owning the orders
+    * @return the shard holding every order of the given login
+    */
+   public int shardForLogin (String login) {
+      // String.hashCode is fixed by the language spec, so this is stable
+      // across runs and machines
+      return Math.floorMod(login.trim().hashCode(), this._shards.size());
+   }//end shardForLogin
+
+   /**
+    * Finds the shard holding the given order
+    *
+    * @param orderid the order id
+    * @return the shard number
+    * @throws java.sql.SQLException when the order does not exist on any shard
+    */
+   public int shardForOrder (int orderid) throws SQLException {
+      Integer cached = this._orderShard.get(orderid);
+      if (cached != null)
+         return cached;
+
+      String probe = "SELECT 1 FROM Orders WHERE orderid = " + orderid;
+
+      // orders created through Cafe live on the shard matching their id
+      int guess = Math.floorMod(orderid, this._shards.size());
+      if (!query(guess, probe, null).isEmpty()) {
+         this._orderShard.put(orderid, guess);
+         return guess;
+      }
+
+      List<List<List<String>>> found = fanOutPerShard(probe, null);
+      for (int shard = 0; shard < found.size(); shard++) {
+         if (!found.get(shard).isEmpty()) {
+            this._orderShard.put(orderid, shard);
+            return shard;
+         }
+      }//end for
+      throw new SQLException("Order " + orderid + " does not exist");
+   }//end shardForOrder
+
+   /**
+    * Allocates the id of a new order for the given login.  The id is above
+    * every existing id and maps back to the login's shard.
+    *
+    * @param login the login placing the order
+    * @return the new order id
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int nextOrderId (String login) throws SQLException {
+      int shard = shardForLogin(login);
+      int max = 0;
+      for (List<String> row : fanOut("SELECT MAX(O.orderid) FROM Orders O", null)) {
+         if (row.get(0) != null)
+            max = Math.max(max, Integer.parseInt(row.get(0)));
+      }
+      int orderid = max + 1;
+      orderid += Math.floorMod(shard - orderid, this._shards.size());
+      this._orderShard.put(orderid, shard);
+      return orderid;
+   }//end nextOrderId
+
+   /**
+    * Executes an update SQL statement on one shard
+    *
+    * @param shard the shard number
+    * @param sql the input SQL string
+    * @return the number of rows changed
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (int shard, String sql) throws SQLException {
+      Statement stmt = this._shards.get(shard).createStatement ();
+      int rowCount = stmt.executeUpdate (sql);
+      stmt.close ();
+      return rowCount;
+   }//end executeUpdate
+
+   /**
+    * Executes an update SQL statement on every shard and on the home
+    * database in one transaction per database.  Best effort only: a failed
+    * statement rolls every database back, but the commits run one database
+    * at a time, so a failure while committing leaves the databases already
+    * committed changed.
+    *
+    * @param home the home database connection
+    * @param sql the input SQL string
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeUpdateEverywhere (Connection home, String sql) throws SQLException {
+      executeUpdateEverywhere(home, Collections.singletonList(sql));
+   }
+
+   /**
+    * Executes a batch of update SQL statements on every shard and on the
+    * home database in one transaction per database.  Best effort only, as
+    * for a single statement: a failure while committing leaves the databases
+    * already committed changed.
+    *
+    * @param home the home database connection
+    * @param sqls the input SQL strings
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeUpdateEverywhere (Connection home, List<String> sqls) throws SQLException {
+      List<Connection> targets = new ArrayList<Connection>(this._shards);
+      targets.add(home);
+      try {
+         for (Connection conn : targets) {
+            conn.setAutoCommit(false);
+            Statement stmt = conn.createStatement ();
+            for (String sql : sqls)
+               stmt.addBatch (sql);
+            stmt.executeBatch ();
+            stmt.close ();
+         }//end for
+         for (Connection conn : targets)
+            conn.commit();
+      }catch (SQLException e) {
+         for (Connection conn : targets) {
+            try {
+               conn.rollback();
+            }catch (SQLException ignored) {
+               // ignored.
+            }
+         }//end for
+         throw e;
+      }finally {
+         for (Connection conn : targets)
+            conn.setAutoCommit(true);
+      }//end try
+   }//end executeUpdateEverywhere
+
+   /**
+    * Executes a query on one shard
+    *
+    * @param shard the shard number
+    * @param query the input query string
+    * @param header receives the column names when not null
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> query (int shard, String query, List<String> header) throws SQLException {
+      Statement stmt = this._shards.get(shard).createStatement ();
+      ResultSet rs = stmt.executeQuery (query);
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      int numCol = rsmd.getColumnCount ();
+      if (header != null && header.isEmpty()) {
+         for (int i = 1; i <= numCol; ++i)
+            header.add(rsmd.getColumnName(i));
+      }
+      List<List<String>> result = new ArrayList<List<String>>();
+      while (rs.next()){
+         List<String> record = new ArrayList<String>();
+         for (int i = 1; i <= numCol; ++i)
+            record.add(rs.getString (i));
+         result.add(record);
+      }//end while
+      stmt.close ();
+      return result;
+   }//end query
+
+   /**
+    * Executes a query on every shard in parallel and concatenates the
+    * results in shard order
+    *
+    * @param query the input query string
+    * @param header receives the column names when not null
+    * @return the merged query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> fanOut (String query, List<String> header) throws SQLException {
+      List<List<String>> merged = new ArrayList<List<String>>();
+      for (List<List<String>> rows : fanOutPerShard(query, header))
+         merged.addAll(rows);
+      return merged;
+   }//end fanOut
+
+   private List<List<List<String>>> fanOutPerShard (String query, List<String> header) throws SQLException {
+      List<Callable<List<List<String>>>> tasks = new ArrayList<Callable<List<List<String>>>>();
+      for (int i = 0; i < this._shards.size(); i++) {
+         final int shard = i;
+         // only the first shard reports the column names
+         final List<String> shardHeader = (shard == 0) ? header : null;
+         tasks.add(() -> query(shard, query, shardHeader));
+      }//end for
+
+      List<List<List<String>>> results = new ArrayList<List<List<String>>>();
+      try {
+         for (Future<List<List<String>>> future : this._pool.invokeAll(tasks))
+            results.add(future.get());
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while querying shards", e);
+      }catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause());
+      }//end try
+      return results;
+   }//end fanOutPerShard
+
+   /**
+    * Closes every shard connection and stops the fan-out threads.
+    */
+   public void cleanup () {
+      this._pool.shutdownNow();
+      for (Connection shard : this._shards) {
+         try {
+            shard.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }//end for
+   }//end cleanup
+
+}//end ShardRouter
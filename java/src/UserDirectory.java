@@ -0,0 +1,506 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class keeps every login, phone number and user type in memory so
+ * CreateUser, LogIn and find_type can answer without a database round trip.
+ *
+ * Logins are kept sorted and packed into one byte array, and a login's
+ * position in it is its id.  Types are codes into a small dictionary and
+ * phone numbers are 64-bit hashes, both in arrays indexed by login id.  A
+ * Bloom filter in front of each lookup answers most misses without
+ * searching the arrays.  About 40 bytes are used per user.
+ *
+ * Every terminal's directory follows the changes of the others: a trigger
+ * on Users sends each changed row on the CHANNEL notification channel, and a
+ * thread of the directory listens on a connection of its own.  The directory
+ * listens before it loads, so no change falls between the load and the
+ * notifications.  While the directory is synced both its hits and its misses
+ * are trusted; a user created on another terminal shows up once the
+ * notification arrives, a few milliseconds after the commit.  When the
+ * listening connection fails the directory is out of sync until it has
+ * reconnected and reloaded, every -Dcafe.userdir.retry.ms, and the callers
+ * go to the database meanwhile.
+ *
+ */
+public class UserDirectory {
+
+   public static final long DEFAULT_RETRY_MS = 5000;
+
+   // notification channel of the cafe_users_changed trigger, one
+   // notification per row: "U\tlogin\tphoneNum\ttype" or "D\tlogin"
+   public static final String CHANNEL = "cafe_users";
+
+   static final String LOAD_QUERY = "SELECT login, phoneNum, type FROM Users";
+
+   private static final int NOTIFY_WAIT_MS = 500;
+
+   private final String _url;
+   private final long _retryMillis;
+
+   // the listening session, only used by the listener thread once loaded
+   private Connection _connection = null;
+   private volatile boolean _synced = false;
+   private volatile boolean _closed = false;
+   private final Thread _listener;
+
+   // sorted logins, login i is data[offsets[i] .. offsets[i + 1])
+   private byte[] _data;
+   private int[] _offsets;
+   private int _count;
+
+   // per login id, a type code and the hash of the phone number (0 for none)
+   private byte[] _types;
+   private long[] _phoneOf;
+   private String[] _typeNames = new String[0];
+
+   // sorted hashes of every phone number in use
+   private long[] _phones;
+   private int _phoneCount;
+
+   private BloomFilter _loginFilter;
+   private BloomFilter _phoneFilter;
+
+   /**
+    * Creates a directory, loads every user and starts following changes
+    *
+    * @param url the connection URL of the home database
+    * @param retryMillis how long to wait before reconnecting a failed listening connection
+    * @throws java.sql.SQLException when failed to load the users
+    */
+   public UserDirectory (String url, long retryMillis) throws SQLException {
+      this._url = url;
+      this._retryMillis = Math.max(0, retryMillis);
+      connect();
+      this._listener = new Thread(this::listen, "user-directory");
+      this._listener.setDaemon(true);
+      this._listener.start();
+   }//end UserDirectory
+
+   /**
+    * @return true when the directory has every change committed up to a few
+    *         milliseconds ago, so a miss means the user does not exist
+    */
+   public boolean isSynced () {
+      return this._synced;
+   }
+
+   /*
+    * Opens the listening session, listens and then loads every user
+    **/
+   private void connect () throws SQLException {
+      Connection conn = DriverManager.getConnection(this._url);
+      try (Statement stmt = conn.createStatement()) {
+         stmt.execute("LISTEN " + CHANNEL);
+         List<String[]> users = new ArrayList<String[]>();
+         try (ResultSet rs = stmt.executeQuery(LOAD_QUERY)) {
+            while (rs.next())
+               users.add(new String[] { rs.getString(1), rs.getString(2), rs.getString(3) });
+         }
+         load(users);
+      }catch (SQLException e) {
+         conn.close();
+         throw e;
+      }//end try
+      this._connection = conn;
+      this._synced = true;
+   }//end connect
+
+   /*
+    * Applies the notifications as they come, and reconnects and reloads after
+    * the listening session failed
+    **/
+   private void listen () {
+      while (!this._closed) {
+         try {
+            if (this._connection == null) {
+               Thread.sleep(this._retryMillis);
+               connect();
+            }
+            PGNotification[] notifications =
+               this._connection.unwrap(PGConnection.class).getNotifications(NOTIFY_WAIT_MS);
+            if (notifications == null)
+               continue;
+            for (PGNotification n : notifications)
+               apply(n.getParameter());
+         }catch (InterruptedException e) {
+            return;
+         }catch (SQLException e) {
+            if (this._closed)
+               return;
+            this._synced = false;
+            System.err.println("User directory out of sync: " + e.getMessage());
+            close();
+         }//end try
+      }//end while
+   }//end listen
+
+   private void apply (String payload) {
+      String[] row = payload.split("\t", -1);
+      if (row.length >= 4 && row[0].equals("U")) {
+         add(row[1], row[2], row[3]);
+         setPhone(row[1], row[2]);
+         setType(row[1], row[3]);
+      }else if (row.length >= 2 && row[0].equals("D")) {
+         remove(row[1]);
+      }
+   }//end apply
+
+   private synchronized void load (List<String[]> rows) {
+      int n = rows.size();
+      byte[][] logins = new byte[n][];
+      Integer[] order = new Integer[n];
+      for (int i = 0; i < n; i++) {
+         logins[i] = rows.get(i)[0].trim().getBytes(StandardCharsets.UTF_8);
+         order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> compare(logins[a], logins[b]));
+
+      int size = 0;
+      for (byte[] login : logins)
+         size += login.length;
+      this._data = new byte[size + 256];
+      this._offsets = new int[n + 16];
+      this._types = new byte[n + 16];
+      this._phoneOf = new long[n + 16];
+      this._phones = new long[n + 16];
+      this._typeNames = new String[0];
+      this._loginFilter = new BloomFilter(n);
+      this._phoneFilter = new BloomFilter(n);
+      this._count = 0;
+      this._phoneCount = 0;
+
+      int pos = 0;
+      for (int i : order) {
+         byte[] login = logins[i];
+         System.arraycopy(login, 0, this._data, pos, login.length);
+         this._offsets[this._count] = pos;
+         pos += login.length;
+         this._types[this._count] = typeCode(rows.get(i)[2]);
+         this._phoneOf[this._count] = phoneHash(rows.get(i)[1]);
+         this._loginFilter.add(hash(login));
+         this._count++;
+      }//end for
+      this._offsets[this._count] = pos;
+
+      for (int i = 0; i < this._count; i++) {
+         if (this._phoneOf[i] != 0) {
+            this._phones[this._phoneCount++] = this._phoneOf[i];
+            this._phoneFilter.add(this._phoneOf[i]);
+         }
+      }
+      Arrays.sort(this._phones, 0, this._phoneCount);
+   }//end load
+
+   /**
+    * @return the number of users in the directory
+    */
+   public synchronized int size () {
+      return this._count;
+   }
+
+   /**
+    * @param login the login
+    * @return true when the login is in the directory
+    */
+   public synchronized boolean contains (String login) {
+      byte[] key = login.trim().getBytes(StandardCharsets.UTF_8);
+      return this._loginFilter.mightContain(hash(key)) && find(key) >= 0;
+   }//end contains
+
+   /**
+    * @param phoneNum the phone number
+    * @return true when a user in the directory has the phone number
+    */
+   public synchronized boolean containsPhone (String phoneNum) {
+      long h = phoneHash(phoneNum);
+      return h != 0 && this._phoneFilter.mightContain(h) &&
+             Arrays.binarySearch(this._phones, 0, this._phoneCount, h) >= 0;
+   }//end containsPhone
+
+   /**
+    * @param login the login
+    * @return the type of the user as stored in Users.type, or null when the
+    *         login is not in the directory
+    */
+   public synchronized String type (String login) {
+      byte[] key = login.trim().getBytes(StandardCharsets.UTF_8);
+      if (!this._loginFilter.mightContain(hash(key)))
+         return null;
+      int id = find(key);
+      return (id < 0) ? null : this._typeNames[this._types[id]];
+   }//end type
+
+   /**
+    * Adds a user, unless the login is already in the directory
+    *
+    * @param login the login
+    * @param phoneNum the phone number
+    * @param type the user type
+    */
+   public synchronized void add (String login, String phoneNum, String type) {
+      byte[] key = login.trim().getBytes(StandardCharsets.UTF_8);
+      int id = find(key);
+      if (id >= 0)
+         return;
+      id = -id - 1;
+
+      if (this._count + 1 >= this._offsets.length) {
+         int capacity = this._offsets.length * 2;
+         this._offsets = Arrays.copyOf(this._offsets, capacity);
+         this._types = Arrays.copyOf(this._types, capacity);
+         this._phoneOf = Arrays.copyOf(this._phoneOf, capacity);
+         this._phones = Arrays.copyOf(this._phones, capacity);
+      }
+      int end = this._offsets[this._count];
+      if (end + key.length > this._data.length)
+         this._data = Arrays.copyOf(this._data, Math.max(this._data.length * 2, end + key.length));
+
+      // shift the following logins up to make room
+      int at = this._offsets[id];
+      System.arraycopy(this._data, at, this._data, at + key.length, end - at);
+      System.arraycopy(key, 0, this._data, at, key.length);
+      for (int i = this._count; i >= id; i--)
+         this._offsets[i + 1] = this._offsets[i] + key.length;
+      this._offsets[id] = at;
+      System.arraycopy(this._types, id, this._types, id + 1, this._count - id);
+      System.arraycopy(this._phoneOf, id, this._phoneOf, id + 1, this._count - id);
+      this._types[id] = typeCode(type);
+      this._phoneOf[id] = 0;
+      this._count++;
+
+      if (this._count > this._loginFilter.capacity())
+         rebuildFilters();
+      this._loginFilter.add(hash(key));
+      setPhone(login, phoneNum);
+   }//end add
+
+   /**
+    * Removes a user
+    *
+    * @param login the login
+    */
+   public synchronized void remove (String login) {
+      byte[] key = login.trim().getBytes(StandardCharsets.UTF_8);
+      int id = find(key);
+      if (id < 0)
+         return;
+      dropPhone(id);
+
+      // shift the following logins down, the filter keeps the login
+      int at = this._offsets[id];
+      int end = this._offsets[this._count];
+      System.arraycopy(this._data, at + key.length, this._data, at, end - at - key.length);
+      for (int i = id; i < this._count; i++)
+         this._offsets[i] = this._offsets[i + 1] - key.length;
+      System.arraycopy(this._types, id + 1, this._types, id, this._count - id - 1);
+      System.arraycopy(this._phoneOf, id + 1, this._phoneOf, id, this._count - id - 1);
+      this._count--;
+   }//end remove
+
+   /**
+    * Changes the phone number of a user
+    *
+    * @param login the login
+    * @param phoneNum the new phone number
+    */
+   public synchronized void setPhone (String login, String phoneNum) {
+      int id = find(login.trim().getBytes(StandardCharsets.UTF_8));
+      if (id < 0)
+         return;
+      long h = phoneHash(phoneNum);
+      if (h == this._phoneOf[id])
+         return;
+      dropPhone(id);
+      this._phoneOf[id] = h;
+      if (h == 0)
+         return;
+      int at = Arrays.binarySearch(this._phones, 0, this._phoneCount, h);
+      if (at < 0)
+         at = -at - 1;
+      System.arraycopy(this._phones, at, this._phones, at + 1, this._phoneCount - at);
+      this._phones[at] = h;
+      this._phoneCount++;
+      this._phoneFilter.add(h);
+   }//end setPhone
+
+   /**
+    * Changes the type of a user
+    *
+    * @param login the login
+    * @param type the new user type
+    */
+   public synchronized void setType (String login, String type) {
+      int id = find(login.trim().getBytes(StandardCharsets.UTF_8));
+      if (id >= 0)
+         this._types[id] = typeCode(type);
+   }//end setType
+
+   /**
+    * Stops following changes and closes the listening connection.
+    */
+   public void cleanup () {
+      this._closed = true;
+      this._synced = false;
+      this._listener.interrupt();
+      try {
+         this._listener.join(NOTIFY_WAIT_MS * 2);
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      close();
+   }//end cleanup
+
+   private synchronized void close () {
+      if (this._connection == null)
+         return;
+      try {
+         this._connection.close();
+      }catch (SQLException e) {
+         // ignored.
+      }
+      this._connection = null;
+   }//end close
+
+   // the filter keeps the old phone, a false positive only costs a search
+   private void dropPhone (int id) {
+      long old = this._phoneOf[id];
+      if (old == 0)
+         return;
+      int at = Arrays.binarySearch(this._phones, 0, this._phoneCount, old);
+      if (at >= 0) {
+         System.arraycopy(this._phones, at + 1, this._phones, at, this._phoneCount - at - 1);
+         this._phoneCount--;
+      }
+      this._phoneOf[id] = 0;
+   }//end dropPhone
+
+   private int find (byte[] key) {
+      int lo = 0, hi = this._count - 1;
+      while (lo <= hi) {
+         int mid = (lo + hi) >>> 1;
+         int cmp = compare(this._data, this._offsets[mid], this._offsets[mid + 1], key);
+         if (cmp < 0)
+            lo = mid + 1;
+         else if (cmp > 0)
+            hi = mid - 1;
+         else
+            return mid;
+      }
+      return -lo - 1;
+   }//end find
+
+   private void rebuildFilters () {
+      this._loginFilter = new BloomFilter(this._count * 2);
+      for (int i = 0; i < this._count; i++)
+         this._loginFilter.add(hash(Arrays.copyOfRange(this._data, this._offsets[i], this._offsets[i + 1])));
+      this._phoneFilter = new BloomFilter(this._count * 2);
+      for (int i = 0; i < this._phoneCount; i++)
+         this._phoneFilter.add(this._phones[i]);
+   }//end rebuildFilters
+
+   private byte typeCode (String type) {
+      // Users.type is char(8), keep the padding the menus switch on
+      String padded = String.format("%-8s", type == null ? "" : type.trim());
+      for (int i = 0; i < this._typeNames.length; i++) {
+         if (this._typeNames[i].equals(padded))
+            return (byte) i;
+      }
+      this._typeNames = Arrays.copyOf(this._typeNames, this._typeNames.length + 1);
+      this._typeNames[this._typeNames.length - 1] = padded;
+      return (byte) (this._typeNames.length - 1);
+   }//end typeCode
+
+   private static long phoneHash (String phoneNum) {
+      if (phoneNum == null || phoneNum.trim().isEmpty())
+         return 0;
+      long h = hash(phoneNum.trim().getBytes(StandardCharsets.UTF_8));
+      return (h == 0) ? 1 : h;
+   }//end phoneHash
+
+   private static int compare (byte[] a, byte[] b) {
+      return compare(a, 0, a.length, b);
+   }
+
+   private static int compare (byte[] data, int from, int to, byte[] key) {
+      return Arrays.compareUnsigned(data, from, to, key, 0, key.length);
+   }
+
+   // 64-bit FNV-1a followed by a finalising mix
+   private static long hash (byte[] bytes) {
+      long h = 0xcbf29ce484222325L;
+      for (byte b : bytes) {
+         h ^= (b & 0xff);
+         h *= 0x100000001b3L;
+      }
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      return h;
+   }//end hash
+
+   /**
+    * A Bloom filter over 64-bit hashes with about a 1% false positive rate
+    * up to its capacity
+    */
+   static class BloomFilter {
+      private static final int HASHES = 7;
+
+      private final long[] _bits;
+      private final long _size;
+      private final int _capacity;
+
+      BloomFilter (int capacity) {
+         this._capacity = Math.max(capacity, 64);
+         // 10 bits per entry
+         this._size = (long) this._capacity * 10;
+         this._bits = new long[(int) ((this._size + 63) / 64)];
+      }
+
+      int capacity () {
+         return this._capacity;
+      }
+
+      void add (long h) {
+         long h2 = (h >>> 32) | 1;
+         for (int i = 0; i < HASHES; i++) {
+            long bit = Math.floorMod(h + i * h2, this._size);
+            this._bits[(int) (bit >>> 6)] |= 1L << bit;
+         }
+      }//end add
+
+      boolean mightContain (long h) {
+         long h2 = (h >>> 32) | 1;
+         for (int i = 0; i < HASHES; i++) {
+            long bit = Math.floorMod(h + i * h2, this._size);
+            if ((this._bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+               return false;
+         }
+         return true;
+      }//end mightContain
+   }//end BloomFilter
+
+}//end UserDirectory
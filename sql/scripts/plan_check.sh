@@ -0,0 +1,30 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+set -e
+
+#seeds a scratch database at the given scale, then checks every query plan
+#against sql/src/plan_baseline.tsv, e.g. ORDERS=5000000 ./plan_check.sh --record
+DB=${DB:-plancheck}
+ORDERS=${ORDERS:-1000000}
+USERS=${USERS:-28000}
+SEED=${SEED:-42}
+DATA=${DATA:-/tmp/cafe-plan-data}
+PSQL="psql -q -h 127.0.0.1 -p $PGPORT $DB"
+
+# compile the java programs
+javac -d $DIR/../../java/src $DIR/../../java/src/*.java
+
+# orders end now so the 24 hour scan in ViewCurrentOrder finds rows
+java -cp $DIR/../../java/src DataGenerator $DATA --users=$USERS --orders=$ORDERS --seed=$SEED --end=now
+
+$PSQL < $DIR/../src/create_tables.sql
+$PSQL < $DIR/../src/create_indexes.sql
+$PSQL -c "\copy Menu FROM '$DATA/menu.csv' WITH DELIMITER ';'"
+$PSQL -c "\copy Users FROM '$DATA/users.csv' WITH DELIMITER ';'"
+$PSQL -c "\copy Orders FROM '$DATA/orders.csv' WITH DELIMITER ';'"
+$PSQL -c "\copy ItemStatus FROM '$DATA/itemStatus.csv' WITH DELIMITER ';'"
+$PSQL -c "ALTER SEQUENCE orders_orderid_seq RESTART $((ORDERS + 1))"
+$PSQL -c "VACUUM ANALYZE"
+
+java -cp $DIR/../../java/src:$CLASSPATH PlanCheck $DB $PGPORT --baseline=$DIR/../src/plan_baseline.tsv "$@"
@@ -0,0 +1,73 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+set -e
+
+#starts a primary and REPLICAS streaming replicas in scratch directories,
+#seeds the primary and runs Cafe reading from the replicas, e.g.
+#REPLICAS=2 POLICY=leastloaded ./replica_demo.sh
+#every server is stopped again when Cafe exits
+BASE=${BASE:-/tmp/cafe-replicas}
+PRIMARY_PORT=${PRIMARY_PORT:-5433}
+REPLICAS=${REPLICAS:-1}
+POLICY=${POLICY:-roundrobin}
+ORDERS=${ORDERS:-20000}
+USERS=${USERS:-2000}
+DATA=$BASE/data
+DB=mydb
+PSQL="psql -q -h 127.0.0.1 -p $PRIMARY_PORT"
+
+stop_all() {
+   for dir in $BASE/replica* $BASE/primary; do
+      [ -f $dir/postmaster.pid ] && pg_ctl -D $dir -m fast stop > /dev/null || true
+   done
+}
+stop_all
+rm -rf $BASE
+mkdir -p $BASE
+trap stop_all EXIT
+
+# primary, with WAL for the replicas to stream
+initdb -D $BASE/primary -A trust > $BASE/initdb.log
+cat >> $BASE/primary/postgresql.conf <<EOF
+wal_level = replica
+max_wal_senders = 10
+hot_standby = on
+EOF
+pg_ctl -D $BASE/primary -o "-p $PRIMARY_PORT -k /tmp" -l $BASE/primary.log -w start
+$PSQL -d postgres -c "CREATE DATABASE $DB"
+
+# compile the java programs and seed the primary
+javac -d $DIR/../../java/src $DIR/../../java/src/*.java
+java -cp $DIR/../../java/src DataGenerator $DATA --users=$USERS --orders=$ORDERS --end=now
+$PSQL $DB < $DIR/../src/create_tables.sql
+$PSQL $DB < $DIR/../src/create_indexes.sql
+$PSQL $DB -c "\copy Menu FROM '$DATA/menu.csv' WITH DELIMITER ';'"
+$PSQL $DB -c "\copy Users FROM '$DATA/users.csv' WITH DELIMITER ';'"
+$PSQL $DB -c "\copy Orders FROM '$DATA/orders.csv' WITH DELIMITER ';'"
+$PSQL $DB -c "\copy ItemStatus FROM '$DATA/itemStatus.csv' WITH DELIMITER ';'"
+$PSQL $DB -c "ALTER SEQUENCE orders_orderid_seq RESTART $((ORDERS + 1))"
+
+# each replica is a copy of the stopped primary that follows it from then on
+pg_ctl -D $BASE/primary -m fast -w stop > /dev/null
+REPLICA_PORTS=""
+for i in $(seq 1 $REPLICAS); do
+   port=$((PRIMARY_PORT + i))
+   cp -a $BASE/primary $BASE/replica$i
+   touch $BASE/replica$i/standby.signal
+   echo "primary_conninfo = 'host=127.0.0.1 port=$PRIMARY_PORT'" >> $BASE/replica$i/postgresql.conf
+   REPLICA_PORTS="$REPLICA_PORTS${REPLICA_PORTS:+,}$port"
+done
+pg_ctl -D $BASE/primary -o "-p $PRIMARY_PORT -k /tmp" -l $BASE/primary.log -w start
+for i in $(seq 1 $REPLICAS); do
+   pg_ctl -D $BASE/replica$i -o "-p $((PRIMARY_PORT + i)) -k /tmp" -l $BASE/replica$i.log -w start
+done
+
+#reads go to the replicas, writes and reads right after them to the primary
+CAFE_OPTS="-Dcafe.replicas=$REPLICA_PORTS -Dcafe.replica.policy=$POLICY $CAFE_OPTS" \
+   PGPORT=$PRIMARY_PORT $DIR/../../java/scripts/compile.sh
+
+#per server read counts, to see where the reads went
+for port in $PRIMARY_PORT ${REPLICA_PORTS//,/ }; do
+   echo "port $port: $(psql -At -h 127.0.0.1 -p $port $DB -c "SELECT xact_commit FROM pg_stat_database WHERE datname = '$DB'") transactions"
+done
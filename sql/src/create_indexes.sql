@@ -0,0 +1,2 @@
+-- the kitchen's open items, a few hundred rows among millions of finished ones
+CREATE INDEX itemstatus_open ON ItemStatus(status) WHERE status IN ('Hasn''t Started', 'Started');
@@ -36,3 +36,31 @@ CREATE TABLE ItemStatus(
 	PRIMARY KEY(orderid,itemName),
 	FOREIGN KEY(orderid) REFERENCES Orders(orderid),
 	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
+
+DROP SEQUENCE cafe_shed_order_entry;
+DROP SEQUENCE cafe_shed_browse;
+DROP SEQUENCE cafe_shed_management;
+
+-- queries refused or shed by admission control, per priority class
+CREATE SEQUENCE cafe_shed_order_entry;
+CREATE SEQUENCE cafe_shed_browse;
+CREATE SEQUENCE cafe_shed_management;
+
+-- tells the user directory of every terminal about a changed user
+CREATE OR REPLACE FUNCTION cafe_users_notify() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP <> 'INSERT' THEN
+		IF TG_OP = 'DELETE' OR OLD.login <> NEW.login THEN
+			PERFORM pg_notify('cafe_users', 'D' || E'\t' || rtrim(OLD.login));
+		END IF;
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		PERFORM pg_notify('cafe_users', 'U' || E'\t' || rtrim(NEW.login) || E'\t' ||
+		                  coalesce(rtrim(NEW.phoneNum), '') || E'\t' || rtrim(NEW.type));
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER cafe_users_changed AFTER INSERT OR DELETE OR UPDATE OF login, phoneNum, type ON Users
+	FOR EACH ROW EXECUTE FUNCTION cafe_users_notify();